@@ -21,6 +21,19 @@ along with TweetPepper.  If not, see <http://www.gnu.org/licenses/>.
  */
 package com.cryptoregistry.ml.chacha20;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import javax.security.auth.Destroyable;
+
 /**
  * ChaCha20 from BC with Microlibrary packaging.
  * 
@@ -28,9 +41,31 @@ package com.cryptoregistry.ml.chacha20;
  *
  */
 public class ChaCha20 {
+
+	/**
+	 * Opt-in instrumentation. When false (the default) the JIT removes the
+	 * instrumentation entirely. Enable with
+	 * -Dcom.cryptoregistry.ml.chacha20.metrics=true
+	 */
+	static final boolean METRICS = Boolean.getBoolean("com.cryptoregistry.ml.chacha20.metrics");
+
+	/**
+	 * Also emit a JDK Flight Recorder event per process() call. Requires METRICS
+	 * and a JVM with the jdk.jfr module. Enable with
+	 * -Dcom.cryptoregistry.ml.chacha20.jfr=true
+	 */
+	static final boolean JFR = METRICS && Boolean.getBoolean("com.cryptoregistry.ml.chacha20.jfr");
 	
 	public ChaCha20() {}
 
+	/**
+	 * Cumulative counters for the process() calls of all ChaCha20 instances
+	 * in this JVM. All values stay at zero unless METRICS is enabled.
+	 */
+	public static Metrics metrics() {
+		return ChaChaMetrics.INSTANCE;
+	}
+
 	/**
 	 * Process buf with the streaming cipher. Key must be 128 or 256 bits. Nonce must be 64 bits. To decrypt,
 	 * just pass in buf filled the encrypted bytes instead of the raw ones. 
@@ -46,17 +81,571 @@ public class ChaCha20 {
 			default: throw new RuntimeException("key must be 128 or 256 bits in size");
 		}
 		if(nonce.length != 8) throw new RuntimeException("nonce must be 64 bits in size");
+		
+		long start = METRICS ? System.nanoTime() : 0L;
+		ChaChaProcessEvent event = JFR ? ChaChaProcessEvent.start(buf.length) : null;
 			
 		ChaChaEngine e = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
-		e.init(true, new ParametersWithIV(new KeyParameter(key), nonce));
+		KeyParameter kp = new KeyParameter(key);
+		e.init(true, new ParametersWithIV(kp, nonce));
+		kp.destroy();
 		e.processBytes(buf, 0, buf.length, buf, 0);
+		// one block on init, then one each time the position crosses 64 bytes
+		int blocks = METRICS ? (int) (e.getPosition() / 64) + 1 : 0;
+		e.destroy();
+		
+		if (METRICS) {
+			ChaChaMetrics.INSTANCE.recordCall(buf.length, blocks, System.nanoTime() - start);
+			if (event != null) {
+				event.blocks = blocks;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Create a keystream buffer for one key/nonce pair. Call fill() on an idle
+	 * thread to generate keystream ahead of time; process() then encrypts or
+	 * decrypts small messages with a single XOR against the precomputed bytes.
+	 * 
+	 * @param key 128 or 256 bits
+	 * @param nonce 64 bits
+	 * @param capacity ring buffer size in bytes, 1 to 2^30, rounded up to a
+	 *            power of two of at least 64
+	 * @return the buffer, positioned at keystream offset 0, to be closed to
+	 *         zeroize the key and keystream
+	 */
+	public KeyStreamBuffer precompute(byte[] key, byte[] nonce, int capacity) {
+		switch(key.length){
+			case 16:
+			case 32: break;
+			default: throw new RuntimeException("key must be 128 or 256 bits in size");
+		}
+		if(nonce.length != 8) throw new RuntimeException("nonce must be 64 bits in size");
+		if(capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("capacity must be 1 to 2^30 bytes");
+		
+		ChaChaEngine e = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+		e.init(key, nonce);
+		return new KeyStreamBuffer(e, capacity);
+	}
+
+	/**
+	 * Create a reusable cipher context for one key. The context keeps its
+	 * buffers across messages, so no per-message allocation takes place, and
+	 * zeroizes all key and keystream material when closed.
+	 * 
+	 * @param key 128 or 256 bits; copied into the context's engine state
+	 * @return the context, to be used with try-with-resources
+	 */
+	public ChaChaContext newContext(byte[] key) {
+		switch(key.length){
+			case 16:
+			case 32: break;
+			default: throw new RuntimeException("key must be 128 or 256 bits in size");
+		}
+		return new ChaChaContext(key);
+	}
+
+	/**
+	 * Start a new encrypted append-only log. The whole file is one ChaCha20
+	 * stream under (key, nonce), so keystream position equals file offset.
+	 * 
+	 * @param log the log file, which must not exist or be empty
+	 * @param checkpoint file that receives (keyId, nonce, position) checkpoints
+	 * @param keyId caller's identifier for key, stored in the checkpoint
+	 * @param key 128 or 256 bits
+	 * @param nonce 64 bits, never to be used with this key again
+	 */
+	public ChaChaLog createLog(Path log, Path checkpoint, long keyId, byte[] key, byte[] nonce) throws IOException {
+		switch(key.length){
+			case 16:
+			case 32: break;
+			default: throw new RuntimeException("key must be 128 or 256 bits in size");
+		}
+		if(nonce.length != 8) throw new RuntimeException("nonce must be 64 bits in size");
+		
+		return ChaChaLog.create(log, checkpoint, keyId, key, nonce);
+	}
+
+	/**
+	 * Reopen a log after a restart. The engine is positioned with seekTo() at
+	 * the end of the file; nothing already in the log is re-processed.
+	 * 
+	 * @param keys looks up the key for the key id found in the checkpoint
+	 */
+	public ChaChaLog resumeLog(Path log, Path checkpoint, LongFunction<byte[]> keys) throws IOException {
+		return ChaChaLog.resume(log, checkpoint, keys);
+	}
+}
+
+/**
+ * Append-only log encrypted as a single ChaCha20 stream. Records are
+ * encrypted at the current keystream position and written at the same file
+ * offset, so the engine simply keeps running across appends and any byte
+ * range can be decrypted by seeking.
+ * <p>
+ * checkpoint() forces the log to disk and then atomically replaces a small
+ * checkpoint file holding (key id, nonce, position). On resume the log must
+ * be at least as long as the checkpoint says: a shorter file would mean
+ * appending over keystream that has already been used, so it is refused.
+ */
+class ChaChaLog implements AutoCloseable {
+
+	private static final byte CHECKPOINT_VERSION = 1;
+	private static final int CHECKPOINT_SIZE = 1 + 8 + 8 + 8;
+
+	private final FileChannel channel;
+	private final Path checkpointFile;
+	private final long keyId;
+	private final byte[] nonce;
+	private final ChaChaEngine writer = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+	private final ChaChaEngine reader = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+	private long position;
+	private byte[] scratch = new byte[256];
+
+	ChaChaLog(FileChannel channel, Path checkpointFile, long keyId, byte[] key, byte[] nonce, long position) {
+		this.channel = channel;
+		this.checkpointFile = checkpointFile;
+		this.keyId = keyId;
+		this.nonce = nonce.clone();
+		this.position = position;
+		writer.init(key, this.nonce);
+		reader.init(key, this.nonce);
+		if (position > 0) {
+			writer.seekTo(position);
+		}
+	}
+
+	static ChaChaLog create(Path log, Path checkpoint, long keyId, byte[] key, byte[] nonce) throws IOException {
+		FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (channel.size() != 0) {
+			channel.close();
+			throw new IllegalStateException("log already exists; use resumeLog");
+		}
+		ChaChaLog result = new ChaChaLog(channel, checkpoint, keyId, key, nonce, 0);
+		result.checkpoint();
+		return result;
+	}
+
+	static ChaChaLog resume(Path log, Path checkpoint, LongFunction<byte[]> keys) throws IOException {
+		ByteBuffer cp = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+		if (cp.remaining() != CHECKPOINT_SIZE || cp.get() != CHECKPOINT_VERSION) {
+			throw new IllegalStateException("unrecognised checkpoint " + checkpoint);
+		}
+		long keyId = cp.getLong();
+		byte[] nonce = new byte[8];
+		cp.get(nonce);
+		long checkpointed = cp.getLong();
+
+		FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		if (size < checkpointed) {
+			channel.close();
+			throw new IllegalStateException("log is shorter than its checkpoint (" + size + " < "
+					+ checkpointed + "); appending would reuse keystream");
+		}
+		byte[] key = keys.apply(keyId);
+		if (key == null) {
+			channel.close();
+			throw new IllegalStateException("no key for key id " + keyId);
+		}
+		return new ChaChaLog(channel, checkpoint, keyId, key, nonce, size);
+	}
+
+	/**
+	 * Encrypt and append len bytes of record at off. The record itself is not
+	 * modified. If the write fails partway, the bytes that reached the file
+	 * stay there as a torn record and the next append continues after them.
+	 * 
+	 * @return the log position the record was written at
+	 */
+	public synchronized long append(byte[] record, int off, int len) throws IOException {
+		if (len > scratch.length) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		long start = position;
+		writer.processBytes(record, off, len, scratch, 0);
+		ByteBuffer bb = ByteBuffer.wrap(scratch, 0, len);
+		try {
+			while (bb.hasRemaining()) {
+				position += channel.write(bb, position);
+			}
+		} finally {
+			if (bb.hasRemaining()) {
+				// the keystream ran ahead of the file; bring it back in step
+				writer.seekTo(position);
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Read and decrypt len bytes at log position pos into buf at off.
+	 */
+	public synchronized void read(long pos, byte[] buf, int off, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+		while (bb.hasRemaining()) {
+			int n = channel.read(bb, pos + bb.position() - off);
+			if (n < 0) throw new IOException("read past end of log");
+		}
+		reader.seekTo(pos);
+		reader.processBytes(buf, off, len, buf, off);
+		reader.clearKeyStream();
+	}
+
+	/**
+	 * @return the log position the next record will be written at
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	public long getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * Force the log to disk, then record (key id, nonce, position) in the
+	 * checkpoint file. The checkpoint is written to a sibling file and moved
+	 * into place atomically.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		channel.force(false);
+
+		ByteBuffer cp = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		cp.put(CHECKPOINT_VERSION).putLong(keyId).put(nonce).putLong(position);
+		Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+		Files.write(tmp, cp.array());
+		Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Checkpoint, close the file and wipe both engines.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			checkpoint();
+			channel.close();
+		} finally {
+			writer.destroy();
+			reader.destroy();
+		}
+	}
+}
+
+/**
+ * A ChaCha20 engine bound to one key, reused for any number of messages and
+ * wiped on close. Between messages only the key words remain in the engine
+ * state; the keystream buffers are cleared after every call.
+ */
+class ChaChaContext implements AutoCloseable, Destroyable {
+
+	final ChaChaEngine engine = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+	private final byte[] zeroNonce = new byte[8];
+	private boolean destroyed;
+
+	ChaChaContext(byte[] key) {
+		engine.init(key, zeroNonce);
+		engine.clearKeyStream();
+	}
+
+	/**
+	 * Process len bytes of buf at off in place with the context's key and the
+	 * given nonce, starting at keystream position 0.
+	 * 
+	 * @param nonce 64 bits
+	 */
+	public synchronized void process(byte[] nonce, byte[] buf, int off, int len) {
+		if (destroyed) {
+			throw new IllegalStateException("context has been destroyed");
+		}
+		if (nonce.length != 8) throw new RuntimeException("nonce must be 64 bits in size");
+
+		engine.init(null, nonce);
+		try {
+			engine.processBytes(buf, off, len, buf, off);
+		} finally {
+			engine.clearKeyStream();
+		}
+	}
+
+	public synchronized void destroy() {
+		engine.destroy();
+		destroyed = true;
+	}
+
+	public synchronized boolean isDestroyed() {
+		return destroyed;
+	}
+
+	public void close() {
+		destroy();
+	}
+}
+
+/**
+ * Ring buffer of keystream generated ahead of use from a single key/nonce.
+ * One thread (typically idle) calls fill(), any thread may call process().
+ * Messages consume the keystream in order, and each call to process() returns
+ * the keystream position it started at so the peer can seekTo() it. Consumed
+ * keystream is wiped from the ring immediately, and the key and the rest of
+ * the ring on close.
+ */
+class KeyStreamBuffer implements AutoCloseable, Destroyable {
+
+	final Salsa20Engine engine;
+	final byte[] ring;
+	private final int mask;
+	private boolean destroyed;
+
+	// absolute keystream positions; produced - consumed bytes are ready
+	private long produced;
+	private long consumed;
+
+	KeyStreamBuffer(Salsa20Engine engine, int capacity) {
+		int size = 64;
+		while (size < capacity) size <<= 1;
+		this.engine = engine;
+		this.ring = new byte[size];
+		this.mask = size - 1;
+		engine.clearKeyStream();
+	}
+
+	/**
+	 * Generate keystream until the ring is full.
+	 * 
+	 * @return the number of bytes generated
+	 */
+	public int fill() {
+		int generated = 0;
+		while (true) {
+			// block by block, so process() never waits for more than one block
+			synchronized (this) {
+				checkDestroyed();
+				if (produced - consumed > ring.length - 64) {
+					return generated;
+				}
+				nextBlock();
+			}
+			generated += 64;
+		}
+	}
+
+	/**
+	 * XOR len bytes of buf at off with the next keystream bytes. If the ring
+	 * does not hold enough precomputed keystream the rest is generated inline.
+	 * 
+	 * @return the keystream position this message starts at
+	 */
+	public synchronized long process(byte[] buf, int off, int len) {
+		checkDestroyed();
+		if (off < 0 || len < 0 || len > buf.length - off) {
+			throw new Salsa20Engine.DataLengthException("input buffer too short");
+		}
+
+		long start = consumed;
+		while (len > 0) {
+			if (produced == consumed) {
+				nextBlock();
+			}
+			int pos = (int) consumed & mask;
+			int n = (int) Math.min(len, Math.min(produced - consumed, ring.length - pos));
+			for (int i = 0; i < n; i++) {
+				buf[off + i] ^= ring[pos + i];
+			}
+			Arrays.fill(ring, pos, pos + n, (byte) 0);
+			consumed += n;
+			off += n;
+			len -= n;
+		}
+		return start;
+	}
+
+	/**
+	 * @return the number of precomputed keystream bytes ready for process()
+	 */
+	public synchronized int available() {
+		return (int) (produced - consumed);
+	}
+
+	/**
+	 * @return the keystream position the next call to process() will start at
+	 */
+	public synchronized long getPosition() {
+		return consumed;
+	}
+
+	/**
+	 * Wipe all precomputed keystream and discard it. The position is not
+	 * rewound: the discarded keystream is never reused.
+	 */
+	public synchronized void wipe() {
+		Arrays.fill(ring, (byte) 0);
+		consumed = produced;
+	}
+
+	public synchronized void destroy() {
+		wipe();
+		engine.destroy();
+		destroyed = true;
+	}
+
+	public synchronized boolean isDestroyed() {
+		return destroyed;
+	}
+
+	public void close() {
+		destroy();
+	}
+
+	// caller holds the lock
+	private void checkDestroyed() {
+		if (destroyed) {
+			throw new IllegalStateException("keystream buffer has been destroyed");
+		}
+	}
+
+	// caller holds the lock
+	private void nextBlock() {
+		if (engine.getCounter() == -1L) {
+			throw new Salsa20Engine.MaxBytesExceededException(
+					"2^70 byte limit per IV; Change IV");
+		}
+		engine.generateKeyStream(ring, (int) produced & mask);
+		engine.clearKeyStream();
+		engine.advanceCounter();
+		produced += 64;
+	}
+}
+
+/**
+ * View of the ChaCha20 counters, shared by all instances in the JVM. Every
+ * counter covers ChaCha20.process() calls only, so bytes per call and bytes
+ * per nanosecond are meaningful; contexts, keystream buffers and logs are not
+ * counted.
+ */
+interface Metrics {
+
+	/** Total bytes passed through ChaCha20.process() */
+	public long bytesProcessed();
+
+	/** Total 64 byte keystream blocks generated by ChaCha20.process() */
+	public long blocksGenerated();
+
+	/** Total calls to ChaCha20.process() */
+	public long calls();
+
+	/** Cumulative wall time spent in ChaCha20.process(), in nanoseconds */
+	public long totalNanos();
+
+	/**
+	 * Upper bounds (inclusive, in bytes) of the call size buckets; the last
+	 * bucket is unbounded
+	 */
+	public int[] sizeBucketBounds();
+
+	/** Calls to ChaCha20.process() per size bucket, parallel to sizeBucketBounds() */
+	public long[] callsBySizeBucket();
+
+	public void reset();
+}
+
+class ChaChaMetrics implements Metrics {
+
+	private static final int[] BUCKET_BOUNDS = { 64, 256, 1024, 4096, 16384, 65536, Integer.MAX_VALUE };
+
+	static final ChaChaMetrics INSTANCE = new ChaChaMetrics();
+
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder blocks = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+	private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length];
+
+	private ChaChaMetrics() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void recordCall(int len, int blockCount, long elapsed) {
+		bytes.add(len);
+		blocks.add(blockCount);
+		nanos.add(elapsed);
+		int i = 0;
+		while (len > BUCKET_BOUNDS[i]) i++;
+		buckets[i].increment();
+	}
+
+	public long bytesProcessed() {
+		return bytes.sum();
+	}
+
+	public long blocksGenerated() {
+		return blocks.sum();
+	}
+
+	public long calls() {
+		long sum = 0;
+		for (LongAdder b : buckets) sum += b.sum();
+		return sum;
+	}
+
+	public long totalNanos() {
+		return nanos.sum();
+	}
+
+	public int[] sizeBucketBounds() {
+		return BUCKET_BOUNDS.clone();
+	}
+
+	public long[] callsBySizeBucket() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	public void reset() {
+		bytes.reset();
+		blocks.reset();
+		nanos.reset();
+		for (LongAdder b : buckets) b.reset();
+	}
+}
+
+/**
+ * Flight Recorder event for one ChaCha20.process() call. This class is only
+ * loaded when ChaCha20.JFR is set, so the library still runs on JVMs without
+ * the jdk.jfr module.
+ */
+@jdk.jfr.Name("com.cryptoregistry.ml.chacha20.Process")
+@jdk.jfr.Label("ChaCha20 Process")
+@jdk.jfr.Category({ "Cryptography", "ChaCha20" })
+@jdk.jfr.StackTrace(false)
+class ChaChaProcessEvent extends jdk.jfr.Event {
+
+	@jdk.jfr.Label("Bytes")
+	@jdk.jfr.DataAmount
+	int bytes;
+
+	@jdk.jfr.Label("Blocks")
+	int blocks;
+
+	static ChaChaProcessEvent start(int len) {
+		ChaChaProcessEvent event = new ChaChaProcessEvent();
+		if (!event.isEnabled()) return null;
+		event.bytes = len;
+		event.begin();
+		return event;
 	}
 }
 
 interface CipherParameters {
 }
 
-class KeyParameter implements CipherParameters {
+class KeyParameter implements CipherParameters, Destroyable {
 	private byte[] key;
 
 	public KeyParameter(byte[] key) {
@@ -72,6 +661,13 @@ class KeyParameter implements CipherParameters {
 	public byte[] getKey() {
 		return key;
 	}
+
+	/**
+	 * Zero the copy of the key held by this parameter.
+	 */
+	public void destroy() {
+		Arrays.fill(key, (byte) 0);
+	}
 }
 
 class ParametersWithIV implements CipherParameters {
@@ -136,7 +732,7 @@ class Salsa20Engine {
 	private int index = 0;
 	protected int[] engineState = new int[STATE_SIZE]; // state
 	protected int[] x = new int[STATE_SIZE]; // internal buffer
-	private byte[] keyStream = new byte[STATE_SIZE * 4]; // expanded state, 64
+	protected byte[] keyStream = new byte[STATE_SIZE * 4]; // expanded state, 64
 															// bytes
 	private boolean initialised = false;
 
@@ -218,6 +814,39 @@ class Salsa20Engine {
 		initialised = true;
 	}
 
+	/**
+	 * Initialise directly from key and iv bytes without wrapping them in
+	 * parameter objects, so re-keying does not allocate or leave key copies
+	 * behind. A null key re-uses the key already loaded.
+	 */
+	void init(byte[] key, byte[] iv) {
+		if (iv == null || iv.length != getNonceSize()) {
+			throw new IllegalArgumentException(getAlgorithmName()
+					+ " requires exactly " + getNonceSize() + " bytes of IV");
+		}
+		if (key == null && !initialised) {
+			throw new IllegalStateException(getAlgorithmName()
+					+ " key can not be null for first initialisation");
+		}
+
+		setKey(key, iv);
+		reset();
+
+		initialised = true;
+	}
+
+	/**
+	 * Zero the key, nonce, counter and all keystream buffers. The engine must
+	 * be initialised with a key before it is used again.
+	 */
+	void destroy() {
+		Arrays.fill(engineState, 0);
+		clearKeyStream();
+		index = 0;
+		resetLimitCounter();
+		initialised = false;
+	}
+
 	protected int getNonceSize() {
 		return 8;
 	}
@@ -434,8 +1063,26 @@ class Salsa20Engine {
 	}
 
 	protected void generateKeyStream(byte[] output) {
+		generateKeyStream(output, 0);
+	}
+
+	/**
+	 * Write the 64 byte keystream block for the current counter into output at
+	 * outOff. The counter is not advanced.
+	 */
+	protected void generateKeyStream(byte[] output, int outOff) {
 		salsaCore(rounds, engineState, x);
-		intToLittleEndian(x, output, 0);
+		intToLittleEndian(x, output, outOff);
+	}
+
+	/**
+	 * Zero the buffered keystream block and the core's output words. The
+	 * engine must be reset() or re-initialised before processBytes() is used
+	 * again.
+	 */
+	void clearKeyStream() {
+		Arrays.fill(keyStream, (byte) 0);
+		Arrays.fill(x, 0);
 	}
 
 	/**
@@ -755,9 +1402,9 @@ class ChaChaEngine extends Salsa20Engine {
 		littleEndianToInt(ivBytes, 0, engineState, 14, 2);
 	}
 
-	protected void generateKeyStream(byte[] output) {
+	protected void generateKeyStream(byte[] output, int outOff) {
 		chachaCore(rounds, engineState, x);
-		intToLittleEndian(x, output, 0);
+		intToLittleEndian(x, output, outOff);
 	}
 
 	/**
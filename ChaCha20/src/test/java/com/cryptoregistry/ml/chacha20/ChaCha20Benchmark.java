@@ -0,0 +1,112 @@
+package com.cryptoregistry.ml.chacha20;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Salsa20 versus ChaCha, run with mvn clean test-compile exec:exec. The core
+ * benchmarks time one 64 byte block (divide by 64 and multiply by the clock
+ * rate for cycles per byte), processBytes covers the whole byte loop and
+ * setup covers engine construction and key schedule.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ChaCha20Benchmark {
+
+	/**
+	 * Keyed engines and a core input block, shared by every benchmark.
+	 */
+	@State(Scope.Thread)
+	public static class Engines {
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[8];
+
+		Salsa20Engine salsa = new Salsa20Engine(Salsa20Engine.DEFAULT_ROUNDS);
+		ChaChaEngine chacha = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+		int[] input = new int[16];
+		int[] x = new int[16];
+
+		@Setup
+		public void setup() {
+			Random rand = new Random(30);
+			rand.nextBytes(key);
+			rand.nextBytes(nonce);
+			for (int i = 0; i < input.length; i++) {
+				input[i] = rand.nextInt();
+			}
+			salsa.init(key, nonce);
+			chacha.init(key, nonce);
+		}
+	}
+
+	/**
+	 * The message for the processBytes benchmarks; only they take the size
+	 * parameter, so the core and setup benchmarks run once.
+	 */
+	@State(Scope.Thread)
+	public static class Message {
+		@Param({ "64", "1024", "16384" })
+		int size;
+
+		byte[] buf;
+
+		@Setup
+		public void setup() {
+			buf = new byte[size];
+			new Random(31).nextBytes(buf);
+		}
+	}
+
+	@Benchmark
+	public int[] salsaCore(Engines s) {
+		s.salsa.salsaCore(Salsa20Engine.DEFAULT_ROUNDS, s.input, s.x);
+		return s.x;
+	}
+
+	@Benchmark
+	public int[] chachaCore(Engines s) {
+		s.chacha.chachaCore(Salsa20Engine.DEFAULT_ROUNDS, s.input, s.x);
+		return s.x;
+	}
+
+	@Benchmark
+	public byte[] salsaProcessBytes(Engines s, Message m) {
+		s.salsa.processBytes(m.buf, 0, m.buf.length, m.buf, 0);
+		return m.buf;
+	}
+
+	@Benchmark
+	public byte[] chachaProcessBytes(Engines s, Message m) {
+		s.chacha.processBytes(m.buf, 0, m.buf.length, m.buf, 0);
+		return m.buf;
+	}
+
+	@Benchmark
+	public Salsa20Engine salsaSetup(Engines s) {
+		Salsa20Engine e = new Salsa20Engine(Salsa20Engine.DEFAULT_ROUNDS);
+		e.init(true, new ParametersWithIV(new KeyParameter(s.key), s.nonce));
+		return e;
+	}
+
+	@Benchmark
+	public Salsa20Engine chachaSetup(Engines s) {
+		ChaChaEngine e = new ChaChaEngine(Salsa20Engine.DEFAULT_ROUNDS);
+		e.init(true, new ParametersWithIV(new KeyParameter(s.key), s.nonce));
+		return e;
+	}
+}
@@ -1,8 +1,25 @@
 package com.cryptoregistry.ml.chacha20;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.*;
 
@@ -33,4 +50,331 @@ public class ChaCha20Test {
 		
 	}
 
+	@Test
+	public void metricsDisabledByDefault() {
+		Assume.assumeTrue(!ChaCha20.METRICS);
+		
+		new ChaCha20().process(new byte[32], new byte[8], new byte[1000]);
+		
+		Metrics m = ChaCha20.metrics();
+		Assert.assertEquals(0, m.bytesProcessed());
+		Assert.assertEquals(0, m.blocksGenerated());
+		Assert.assertEquals(0, m.calls());
+		Assert.assertEquals(m.sizeBucketBounds().length, m.callsBySizeBucket().length);
+	}
+
+	@Test
+	public void metricsEnabled() throws IOException {
+		Assume.assumeTrue(ChaCha20.METRICS && ChaCha20.JFR);
+		
+		Metrics m = ChaCha20.metrics();
+		m.reset();
+		Path dump = Files.createTempFile("chacha20", ".jfr");
+		Recording recording = new Recording();
+		try {
+			recording.enable("com.cryptoregistry.ml.chacha20.Process");
+			recording.start();
+			int[] sizes = {1000, 64, 70000};
+			for (int size : sizes) {
+				new ChaCha20().process(new byte[32], new byte[8], new byte[size]);
+			}
+			recording.stop();
+			recording.dump(dump);
+			
+			Assert.assertEquals(3, m.calls());
+			Assert.assertEquals(71064, m.bytesProcessed());
+			// one block on init plus one per 64 bytes crossed: 16 + 2 + 1094
+			Assert.assertEquals(1112, m.blocksGenerated());
+			Assert.assertTrue(m.totalNanos() > 0);
+			long[] buckets = m.callsBySizeBucket();
+			Assert.assertEquals(1, buckets[0]);
+			Assert.assertEquals(1, buckets[2]);
+			Assert.assertEquals(1, buckets[buckets.length - 1]);
+			
+			// only process() is counted
+			try (ChaChaContext ctx = new ChaCha20().newContext(new byte[32]);
+					KeyStreamBuffer ks = new ChaCha20().precompute(new byte[32], new byte[8], 256)) {
+				ctx.process(new byte[8], new byte[500], 0, 500);
+				ks.fill();
+				ks.process(new byte[500], 0, 500);
+			}
+			Assert.assertEquals(3, m.calls());
+			Assert.assertEquals(71064, m.bytesProcessed());
+			Assert.assertEquals(1112, m.blocksGenerated());
+			
+			List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+			Assert.assertEquals(3, events.size());
+			int[] blocks = {16, 2, 1094};
+			for (int i = 0; i < sizes.length; i++) {
+				Assert.assertEquals(sizes[i], events.get(i).getInt("bytes"));
+				Assert.assertEquals(blocks[i], events.get(i).getInt("blocks"));
+			}
+		} finally {
+			recording.close();
+			Files.delete(dump);
+			m.reset();
+		}
+	}
+
+	@Test
+	public void precomputedKeyStream() {
+		Random rand = new Random(27);
+		byte [] key = new byte[32];
+		byte [] nonce = new byte[8];
+		rand.nextBytes(key);
+		rand.nextBytes(nonce);
+		
+		int[] sizes = {1, 13, 64, 100, 0, 700, 5, 2000};
+		int total = 0;
+		for (int size : sizes) total += size;
+		byte [] all = new byte[total];
+		rand.nextBytes(all);
+		byte [] expected = all.clone();
+		new ChaCha20().process(key, nonce, expected);
+		
+		KeyStreamBuffer ks = new ChaCha20().precompute(key, nonce, 256);
+		Assert.assertEquals(0, ks.available());
+		Assert.assertEquals(256, ks.fill());
+		Assert.assertEquals(256, ks.available());
+		
+		int off = 0;
+		for (int size : sizes) {
+			Assert.assertEquals(off, ks.process(all, off, size));
+			off += size;
+			ks.fill();
+		}
+		Assert.assertEquals(total, ks.getPosition());
+		Assert.assertTrue(Arrays.equals(expected, all));
+		
+		ks.wipe();
+		Assert.assertEquals(0, ks.available());
+		Assert.assertTrue(ks.getPosition() >= total);
+		
+		for (int capacity : new int[] {0, -1, (1 << 30) + 1, Integer.MAX_VALUE}) {
+			try {
+				new ChaCha20().precompute(key, nonce, capacity);
+				Assert.fail();
+			} catch (IllegalArgumentException expectedException) {
+			}
+		}
+		
+		// off + len past Integer.MAX_VALUE is refused before any byte changes
+		byte [] copy = all.clone();
+		try {
+			ks.process(all, 1, Integer.MAX_VALUE);
+			Assert.fail();
+		} catch (Salsa20Engine.DataLengthException expectedException) {
+		}
+		Assert.assertTrue(Arrays.equals(copy, all));
+		ks.close();
+	}
+
+	@Test
+	public void keyStreamBufferZeroizesOnClose() {
+		Random rand = new Random(30);
+		byte [] key = new byte[32];
+		byte [] nonce = new byte[8];
+		rand.nextBytes(key);
+		rand.nextBytes(nonce);
+		
+		KeyStreamBuffer ks = new ChaCha20().precompute(key, nonce, 1024);
+		try {
+			ks.fill();
+			ks.process(new byte[100], 0, 100);
+		} finally {
+			ks.close();
+		}
+		
+		Assert.assertTrue(ks.isDestroyed());
+		assertZero(ks.ring);
+		assertZero(ks.engine.engineState);
+		assertZero(ks.engine.x);
+		assertZero(ks.engine.keyStream);
+		
+		try {
+			ks.fill();
+			Assert.fail();
+		} catch (IllegalStateException expected) {}
+		try {
+			ks.process(new byte[1], 0, 1);
+			Assert.fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	@Test
+	public void contextZeroizesOnClose() {
+		Random rand = new Random(28);
+		byte [] key = new byte[32];
+		rand.nextBytes(key);
+		
+		ChaChaContext ctx = new ChaCha20().newContext(key);
+		try {
+			for (int i = 0; i < 4; i++) {
+				byte [] nonce = new byte[8];
+				byte [] msg = new byte[100 + i * 333];
+				rand.nextBytes(nonce);
+				rand.nextBytes(msg);
+				byte [] expected = msg.clone();
+				new ChaCha20().process(key, nonce, expected);
+				
+				ctx.process(nonce, msg, 0, msg.length);
+				Assert.assertTrue(Arrays.equals(expected, msg));
+				assertZero(ctx.engine.keyStream);
+				assertZero(ctx.engine.x);
+			}
+		} finally {
+			ctx.close();
+		}
+		
+		Assert.assertTrue(ctx.isDestroyed());
+		assertZero(ctx.engine.engineState);
+		assertZero(ctx.engine.x);
+		assertZero(ctx.engine.keyStream);
+		
+		try {
+			ctx.process(new byte[8], new byte[1], 0, 1);
+			Assert.fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	@Test
+	public void appendLogResumes() throws IOException {
+		Random rand = new Random(29);
+		final byte [] key = new byte[32];
+		byte [] nonce = new byte[8];
+		rand.nextBytes(key);
+		rand.nextBytes(nonce);
+		
+		File dir = Files.createTempDirectory("chacha-log").toFile();
+		Path log = new File(dir, "records.log").toPath();
+		Path cp = new File(dir, "records.cp").toPath();
+		
+		byte [] all = new byte[5000];
+		rand.nextBytes(all);
+		
+		ChaCha20 cc = new ChaCha20();
+		ChaChaLog writer = cc.createLog(log, cp, 7, key, nonce);
+		Assert.assertEquals(0, writer.append(all, 0, 10));
+		Assert.assertEquals(10, writer.append(all, 10, 1990));
+		writer.close();
+		
+		writer = cc.resumeLog(log, cp, id -> id == 7 ? key : null);
+		Assert.assertEquals(2000, writer.getPosition());
+		Assert.assertEquals(2000, writer.append(all, 2000, 3000));
+		
+		byte [] middle = new byte[100];
+		writer.read(1950, middle, 0, 100);
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(all, 1950, 2050), middle));
+		writer.close();
+		
+		byte [] expected = Files.readAllBytes(log);
+		cc.process(key, nonce, expected);
+		Assert.assertTrue(Arrays.equals(all, expected));
+		
+		// a log truncated behind its checkpoint must not be appended to
+		Files.write(log, Arrays.copyOf(Files.readAllBytes(log), 4000));
+		try {
+			cc.resumeLog(log, cp, id -> key);
+			Assert.fail();
+		} catch (IllegalStateException e) {}
+		
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void appendLogSurvivesFailedWrite() throws IOException {
+		Random rand = new Random(30);
+		byte [] key = new byte[32];
+		byte [] nonce = new byte[8];
+		rand.nextBytes(key);
+		rand.nextBytes(nonce);
+		byte [] all = new byte[300];
+		rand.nextBytes(all);
+		
+		File dir = Files.createTempDirectory("chacha-log").toFile();
+		Path log = new File(dir, "records.log").toPath();
+		Path cp = new File(dir, "records.cp").toPath();
+		FailingChannel channel = new FailingChannel(FileChannel.open(log, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE));
+		ChaChaLog writer = new ChaChaLog(channel, cp, 7, key, nonce, 0);
+		Assert.assertEquals(0, writer.append(all, 0, 50));
+		
+		// 7 bytes reach the file, then the write fails
+		channel.failAfter = 7;
+		try {
+			writer.append(all, 50, 100);
+			Assert.fail();
+		} catch (IOException e) {}
+		Assert.assertEquals(57, writer.getPosition());
+		
+		channel.failAfter = -1;
+		Assert.assertEquals(57, writer.append(all, 150, 150));
+		byte [] record = new byte[150];
+		writer.read(57, record, 0, 150);
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(all, 150, 300), record));
+		writer.close();
+		
+		byte [] expected = Files.readAllBytes(log);
+		new ChaCha20().process(key, nonce, expected);
+		byte [] written = new byte[207];
+		System.arraycopy(all, 0, written, 0, 57);
+		System.arraycopy(all, 150, written, 57, 150);
+		Assert.assertTrue(Arrays.equals(written, expected));
+		
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Writes at most failAfter bytes, then throws, unless failAfter is
+	 * negative.
+	 */
+	private static class FailingChannel extends FileChannel {
+		private final FileChannel channel;
+		int failAfter = -1;
+		
+		FailingChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		public int write(ByteBuffer src, long position) throws IOException {
+			if (failAfter == 0) throw new IOException("disk full");
+			if (failAfter > 0) {
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + Math.min(failAfter, part.remaining()));
+				int n = channel.write(part, position);
+				src.position(src.position() + n);
+				failAfter -= n;
+				return n;
+			}
+			return channel.write(src, position);
+		}
+		
+		public int read(ByteBuffer dst) throws IOException { return channel.read(dst); }
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return channel.read(dsts, offset, length); }
+		public int write(ByteBuffer src) throws IOException { return channel.write(src); }
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return channel.write(srcs, offset, length); }
+		public long position() throws IOException { return channel.position(); }
+		public FileChannel position(long newPosition) throws IOException { channel.position(newPosition); return this; }
+		public long size() throws IOException { return channel.size(); }
+		public FileChannel truncate(long size) throws IOException { channel.truncate(size); return this; }
+		public void force(boolean metaData) throws IOException { channel.force(metaData); }
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return channel.transferTo(position, count, target); }
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return channel.transferFrom(src, position, count); }
+		public int read(ByteBuffer dst, long position) throws IOException { return channel.read(dst, position); }
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return channel.map(mode, position, size); }
+		public FileLock lock(long position, long size, boolean shared) throws IOException { return channel.lock(position, size, shared); }
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException { return channel.tryLock(position, size, shared); }
+		protected void implCloseChannel() throws IOException { channel.close(); }
+	}
+
+	private static void assertZero(byte[] b) {
+		for (byte v : b) Assert.assertEquals(0, v);
+	}
+
+	private static void assertZero(int[] b) {
+		for (int v : b) Assert.assertEquals(0, v);
+	}
+
 }
@@ -3,7 +3,32 @@
 */
 package com.cryptoregistry.ml.sha3;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigestSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
 
 /**
  * Microlibrary packaging for SHA3 and associated Digests
@@ -18,93 +43,1897 @@ public class SHA3 {
 	public Digest getSHA3Digest() {
 		return new SHA3Digest();
 	}
+
+	/**
+	 * @param bitLength 224, 256, 384 or 512
+	 */
+	public Digest getSHA3Digest(int bitLength) {
+		return new SHA3Digest(bitLength);
+	}
 	
 	public Digest getKeccakDigest() {
 		return new KeccakDigest();
 	}
 
+	/**
+	 * @param bitLength 128, 224, 256, 288, 384 or 512
+	 */
+	public Digest getKeccakDigest(int bitLength) {
+		return new KeccakDigest(bitLength);
+	}
+
 	public Digest getSHAKEDigest() {
 		return new SHAKEDigest();
 	}
-}
 
-/**
- * implementation of SHA-3 based on following KeccakNISTInterface.c from
- * http://keccak.noekeon.org/
- * <p>
- * Following the naming conventions used in the C source code to enable easy
- * review of the implementation.
- */
-class SHA3Digest extends KeccakDigest {
-	private static int checkBitLength(int bitLength) {
-		switch (bitLength) {
-		case 224:
-		case 256:
-		case 384:
-		case 512:
-			return bitLength;
-		default:
-			throw new IllegalArgumentException("'bitLength' " + bitLength
-					+ " not supported for SHA-3");
+	/**
+	 * @param bitLength 128 or 256
+	 */
+	public Xof getSHAKEDigest(int bitLength) {
+		return new SHAKEDigest(bitLength);
+	}
+
+	/**
+	 * The calling thread's SHA3 digest of the given size, reset, for hot
+	 * paths that would otherwise create a digest per hash. It stays owned by
+	 * the thread: finish with it before the next borrow of the same algorithm
+	 * on this thread and do not hand it to another thread. Virtual threads
+	 * get a new digest each time rather than filling thread locals.
+	 * 
+	 * @param bitLength 224, 256, 384 or 512
+	 */
+	public static Digest borrowSHA3Digest(int bitLength) {
+		return DigestCache.borrow(DigestCache.SHA3, bitLength);
+	}
+
+	/**
+	 * As borrowSHA3Digest, for SHAKE.
+	 * 
+	 * @param bitLength 128 or 256
+	 */
+	public static Xof borrowSHAKEDigest(int bitLength) {
+		return (Xof) DigestCache.borrow(DigestCache.SHAKE, bitLength);
+	}
+
+	/**
+	 * As borrowSHA3Digest, for the original Keccak padding.
+	 * 
+	 * @param bitLength 128, 224, 256, 288, 384 or 512
+	 */
+	public static Digest borrowKeccakDigest(int bitLength) {
+		return DigestCache.borrow(DigestCache.KECCAK, bitLength);
+	}
+
+	/**
+	 * A JCA provider with MessageDigest services SHA3-224/256/384/512 (also
+	 * under their OIDs) and KECCAK-224/256/288/384/512 backed by this
+	 * library, for Security.addProvider or MessageDigest.getInstance(name,
+	 * provider). The same instance is returned each time.
+	 */
+	public static Provider getProvider() {
+		return SHA3Provider.INSTANCE;
+	}
+
+	/**
+	 * cSHAKE (NIST SP 800-185). With empty N and S this is plain SHAKE.
+	 * 
+	 * @param bitLength 128 or 256
+	 * @param N function name, may be null
+	 * @param S customization string, may be null
+	 */
+	public Xof getCSHAKEDigest(int bitLength, byte[] N, byte[] S) {
+		return new CSHAKEDigest(bitLength, N, S);
+	}
+
+	/**
+	 * ParallelHash (NIST SP 800-185). Leaves of blockSize bytes are hashed on
+	 * the common fork-join pool when an update supplies enough of them.
+	 * 
+	 * @param bitLength 128 or 256
+	 * @param blockSize leaf size B in bytes
+	 * @param S customization string, may be null
+	 */
+	public Xof getParallelHash(int bitLength, int blockSize, byte[] S) {
+		return new ParallelHash(bitLength, S, blockSize, null);
+	}
+
+	/**
+	 * ParallelHash with the leaves hashed on the given executor instead of
+	 * the common fork-join pool.
+	 */
+	public Xof getParallelHash(int bitLength, int blockSize, byte[] S, Executor executor) {
+		return new ParallelHash(bitLength, S, blockSize, executor);
+	}
+
+	/**
+	 * TurboSHAKE: SHAKE on the 12 round Keccak-p[1600, 12] permutation.
+	 * 
+	 * @param bitLength 128 or 256
+	 * @param D domain separation byte, 0x01 to 0x7F (0x1F by default)
+	 */
+	public Xof getTurboSHAKEDigest(int bitLength, int D) {
+		return new TurboSHAKEDigest(bitLength, D);
+	}
+
+	/**
+	 * KangarooTwelve, with the 8192 byte chunks of large inputs hashed on the
+	 * common fork-join pool.
+	 * 
+	 * @param C customization string, may be null
+	 */
+	public Xof getKangarooTwelve(byte[] C) {
+		return new KangarooTwelve(C, null);
+	}
+
+	/**
+	 * KangarooTwelve with the chunks hashed on the given executor.
+	 */
+	public Xof getKangarooTwelve(byte[] C, Executor executor) {
+		return new KangarooTwelve(C, executor);
+	}
+
+	/**
+	 * KMAC (NIST SP 800-185). The keyed state is computed once; each MAC
+	 * after a doFinal or reset starts from a copy of it.
+	 * 
+	 * @param bitLength 128 or 256
+	 * @param key the MAC key
+	 * @param S customization string, may be null
+	 */
+	public Xof getKMAC(int bitLength, byte[] key, byte[] S) {
+		return new KMAC(bitLength, key, S);
+	}
+
+	/**
+	 * TupleHash (NIST SP 800-185). Each update, or addField, is one element
+	 * of the tuple.
+	 * 
+	 * @param bitLength 128 or 256
+	 * @param S customization string, may be null
+	 */
+	public TupleHash getTupleHash(int bitLength, byte[] S) {
+		return new TupleHash(bitLength, S);
+	}
+
+	/**
+	 * Keccak duplex for deterministic generation and key derivation, with
+	 * 24 rounds.
+	 * 
+	 * @param bitLength security level, 128 or 256
+	 */
+	public KeccakDuplex getDuplex(int bitLength) {
+		return new KeccakDuplex(bitLength, 24);
+	}
+
+	/**
+	 * @param bitLength security level, 128 or 256
+	 * @param rounds 24, or 12 for about twice the speed where the reduced
+	 *            margin of KangarooTwelve is acceptable (simulations)
+	 */
+	public KeccakDuplex getDuplex(int bitLength, int rounds) {
+		return new KeccakDuplex(bitLength, rounds);
+	}
+
+	/**
+	 * A SecureRandom on the Keccak duplex, seeded from the platform
+	 * SecureRandom on first use; setSeed only adds to that. It is deliberately not a service of
+	 * getProvider(), so registering the provider does not change what new
+	 * SecureRandom() returns.
+	 * 
+	 * @param bitLength security level, 128 or 256
+	 */
+	public SecureRandom getSecureRandom(int bitLength) {
+		return new DuplexSecureRandom(bitLength, null);
+	}
+
+	/**
+	 * As getSecureRandom(int), seeded only with seed, so the output is
+	 * reproducible.
+	 */
+	public SecureRandom getSecureRandom(int bitLength, byte[] seed) {
+		return new DuplexSecureRandom(bitLength, seed);
+	}
+
+	/**
+	 * Endless output of xof, which stops accepting input. Read into arrays or
+	 * ByteBuffers, or use it as an InputStream.
+	 */
+	public XofReader getXofReader(Xof xof) {
+		return new XofReader(xof);
+	}
+
+	/**
+	 * One-shot SHA3-256 of len bytes of in at off, written to out at outOff.
+	 * No digest object is created; the sponge runs on a per-thread lane array
+	 * which is cleared again before returning.
+	 * 
+	 * @return the number of bytes written, 32
+	 */
+	public static int hash(byte[] in, int off, int len, byte[] out, int outOff) {
+		if (off < 0 || len < 0 || off + len > in.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+		if (outOff < 0 || outOff + 32 > out.length) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		long[] A = DigestCache.lanes();
+		try {
+			KeccakDigest.hash(A, 24, 136, 0x06, in, off, len, out, outOff, 32);
+		} finally {
+			Arrays.fill(A, 0L);
+		}
+		return 32;
+	}
+
+	/**
+	 * SHA3 digests of many independent messages in one call. The messages are
+	 * run through one reused set of lanes without creating a digest per
+	 * message.
+	 * 
+	 * @param bitLength 224, 256, 384 or 512
+	 * @return one digest per message, in order
+	 */
+	public static byte[][] hashAll(byte[][] messages, int bitLength) {
+		KeccakBatch batch = KeccakBatch.sha3(bitLength);
+		byte[][] digests = new byte[messages.length][batch.outLen];
+		batch.hash(messages, digests);
+		return digests;
+	}
+
+	/**
+	 * SHA3 digests of consecutive chunkSize byte chunks of in (the last chunk
+	 * may be shorter), written back to back into out at outOff.
+	 * 
+	 * @param bitLength 224, 256, 384 or 512
+	 * @return the number of chunks hashed
+	 */
+	public static int hashChunks(byte[] in, int off, int len, int chunkSize, byte[] out, int outOff,
+			int bitLength) {
+		KeccakBatch batch = KeccakBatch.sha3(bitLength);
+		return batch.hashChunks(in, off, len, chunkSize, out, outOff);
+	}
+
+	/**
+	 * Export the intermediate state of a SHA3, SHAKE, cSHAKE, TurboSHAKE or
+	 * Keccak digest, for example to resume hashing a multipart upload on
+	 * another node with importState.
+	 */
+	public static byte[] exportState(Digest digest) {
+		return keccak(digest).exportState();
+	}
+
+	/**
+	 * Load a state from exportState into a digest of the same algorithm.
+	 */
+	public static void importState(Digest digest, byte[] state) {
+		keccak(digest).importState(state);
+	}
+
+	private static KeccakDigest keccak(Digest digest) {
+		if (!(digest instanceof KeccakDigest)) {
+			throw new IllegalArgumentException(digest.getAlgorithmName() + " has no exportable state");
+		}
+		return (KeccakDigest) digest;
+	}
+
+	/**
+	 * Merkle tree (RFC 6962 shape, SHA3-256) over consecutive leafSize byte
+	 * leaves of data, hashed in parallel on the common fork-join pool.
+	 */
+	public static MerkleTree buildMerkleTree(byte[] data, int off, int len, int leafSize) {
+		return new MerkleTree(data, off, len, leafSize, null);
+	}
+
+	/**
+	 * The Merkle root of a file, streamed with memory for a batch of leaves
+	 * (1 MB or one leaf per way) and one node per tree level; the leaves of
+	 * a batch are hashed in parallel. The same root as buildMerkleTree gives.
+	 */
+	public static byte[] merkleRoot(Path file, int leafSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return MerkleTree.root(channel, leafSize);
+		}
+	}
+
+	/**
+	 * As merkleRoot(Path, int) for any channel, which is read to the end but
+	 * not closed.
+	 */
+	public static byte[] merkleRoot(ReadableByteChannel channel, int leafSize) throws IOException {
+		return MerkleTree.root(channel, leafSize);
+	}
+
+	/**
+	 * Check an inclusion proof from MerkleTree.getProof against a root.
+	 */
+	public static boolean verifyMerkleProof(byte[] root, long index, long leafCount, byte[] leaf, int off, int len,
+			byte[][] proof) {
+		return MerkleTree.verify(root, index, leafCount, leaf, off, len, proof);
+	}
+
+	// mapping window; a MappedByteBuffer cannot exceed 2 GB
+	static final int MAP_WINDOW = 1 << 28;
+
+	// smaller files are read, mapping them costs more than it saves
+	static final long MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * SHA3-256 of the contents of a file.
+	 */
+	public static byte[] hash(Path file) throws IOException {
+		Digest digest = new SHA3Digest(256);
+		update(digest, file);
+		byte[] out = new byte[digest.getDigestSize()];
+		digest.doFinal(out, 0);
+		return out;
+	}
+
+	/**
+	 * Feed the contents of a file to digest. Small files are read through a
+	 * heap buffer of the file's size; large files are memory mapped, a window
+	 * of at most 256 MB at a time, and absorbed straight from the mapping.
+	 */
+	public static void update(Digest digest, Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < MAP_THRESHOLD) {
+				// never empty: a read into no space returns 0, not the end
+				update(digest, channel, ByteBuffer.allocate((int) size + 1));
+			} else {
+				update(digest, channel, 0, size, MAP_WINDOW);
+			}
+		}
+	}
+
+	/**
+	 * Feed everything readable from channel to digest, through one 64 KB heap
+	 * buffer. The channel is not closed.
+	 */
+	public static void update(Digest digest, ReadableByteChannel channel) throws IOException {
+		update(digest, channel, ByteBuffer.allocate(64 * 1024));
+	}
+
+	private static void update(Digest digest, ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		while (channel.read(buf) >= 0) {
+			buf.flip();
+			digest.update(buf);
+			buf.clear();
+		}
+	}
+
+	/*
+	 * Map size bytes of channel from position in windows of window bytes.
+	 */
+	static void update(Digest digest, FileChannel channel, long position, long size, int window)
+			throws IOException {
+		while (size > 0) {
+			int n = (int) Math.min(size, window);
+			digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, n));
+			position += n;
+			size -= n;
+		}
+	}
+
+}
+
+/**
+ * Per-thread digests and lanes for the facade. Each platform thread keeps
+ * one digest per algorithm and size, reset when borrowed. Virtual threads
+ * (detected through Thread.isVirtual where the JDK has it) are cheap and
+ * numerous, so they get fresh objects instead of thread locals that would
+ * live as long as each of them.
+ */
+class DigestCache {
+	static final int SHA3 = 0;
+	static final int SHAKE = 1;
+	static final int KECCAK = 2;
+
+	private static final int[][] SIZES = {
+		{ 224, 256, 384, 512 },
+		{ 128, 256 },
+		{ 128, 224, 256, 288, 384, 512 } };
+
+	private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+	private static final ThreadLocal<KeccakDigest[][]> digests = new ThreadLocal<KeccakDigest[][]>() {
+		protected KeccakDigest[][] initialValue() {
+			KeccakDigest[][] d = new KeccakDigest[SIZES.length][];
+			for (int i = 0; i < d.length; i++) {
+				d[i] = new KeccakDigest[SIZES[i].length];
+			}
+			return d;
+		}
+	};
+
+	private static final ThreadLocal<long[]> lanes = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[25];
+		}
+	};
+
+	private static MethodHandle isVirtualHandle() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+					MethodType.methodType(boolean.class));
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	static KeccakDigest borrow(int algorithm, int bitLength) {
+		int slot = Arrays.binarySearch(SIZES[algorithm], bitLength);
+		if (slot < 0) {
+			// let the constructor report it
+			return create(algorithm, bitLength);
+		}
+		if (isVirtual(Thread.currentThread())) {
+			return create(algorithm, bitLength);
+		}
+
+		KeccakDigest[] cache = digests.get()[algorithm];
+		KeccakDigest digest = cache[slot];
+		if (digest == null) {
+			digest = cache[slot] = create(algorithm, bitLength);
+		} else {
+			digest.reset();
+		}
+		return digest;
+	}
+
+	static KeccakDigest create(int algorithm, int bitLength) {
+		switch (algorithm) {
+		case SHA3:
+			return new SHA3Digest(bitLength);
+		case SHAKE:
+			return new SHAKEDigest(bitLength);
+		default:
+			return new KeccakDigest(bitLength);
+		}
+	}
+
+	/*
+	 * 25 lanes for a one-shot hash; the caller clears them when done.
+	 */
+	static long[] lanes() {
+		return isVirtual(Thread.currentThread()) ? new long[25] : lanes.get();
+	}
+}
+
+/**
+ * JCA provider for the SHA3 and Keccak digests, so code written against
+ * MessageDigest.getInstance("SHA3-256") can switch engines by registering
+ * it (or naming it in getInstance) and compare against the JDK's own.
+ * Services are created directly rather than by reflection, which cannot
+ * reach the package-private classes here.
+ */
+class SHA3Provider extends Provider {
+	private static final long serialVersionUID = 1L;
+
+	static final String NAME = "MLSHA3";
+
+	static final SHA3Provider INSTANCE = new SHA3Provider();
+
+	@SuppressWarnings("deprecation")
+	SHA3Provider() {
+		// the (String, String, String) constructor is not in Java 8
+		super(NAME, 1.0, "SHA3 microlibrary digests");
+
+		// NIST hash algorithm OIDs, 2.16.840.1.101.3.4.2.7 to .10
+		int[] sha3 = { 224, 256, 384, 512 };
+		for (int i = 0; i < sha3.length; i++) {
+			String oid = "2.16.840.1.101.3.4.2." + (7 + i);
+			putService(new DigestService(this, "SHA3-" + sha3[i], DigestCache.SHA3, sha3[i],
+					Arrays.asList(oid, "OID." + oid)));
+		}
+		int[] keccak = { 224, 256, 288, 384, 512 };
+		for (int bitLength : keccak) {
+			putService(new DigestService(this, "KECCAK-" + bitLength, DigestCache.KECCAK, bitLength,
+					Collections.<String> emptyList()));
+		}
+	}
+
+	private static final class DigestService extends Service {
+		private final int algorithm;
+		private final int bitLength;
+
+		DigestService(Provider provider, String name, int algorithm, int bitLength, List<String> aliases) {
+			super(provider, "MessageDigest", name, SHA3MessageDigest.class.getName(), aliases, null);
+			this.algorithm = algorithm;
+			this.bitLength = bitLength;
+		}
+
+		public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+			if (constructorParameter != null) {
+				throw new NoSuchAlgorithmException("no parameters for " + getAlgorithm());
+			}
+			return new SHA3MessageDigest(DigestCache.create(algorithm, bitLength));
+		}
+	}
+}
+
+/**
+ * MessageDigestSpi over a KeccakDigest. ByteBuffers go straight into the
+ * lanes and clone copies the sponge rather than replaying input.
+ */
+class SHA3MessageDigest extends MessageDigestSpi implements Cloneable {
+	private KeccakDigest digest;
+
+	SHA3MessageDigest(KeccakDigest digest) {
+		this.digest = digest;
+	}
+
+	protected int engineGetDigestLength() {
+		return digest.getDigestSize();
+	}
+
+	protected void engineUpdate(byte input) {
+		digest.update(input);
+	}
+
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		digest.update(input, offset, len);
+	}
+
+	protected void engineUpdate(ByteBuffer input) {
+		digest.update(input);
+	}
+
+	protected byte[] engineDigest() {
+		byte[] out = new byte[digest.getDigestSize()];
+		digest.doFinal(out, 0);
+		return out;
+	}
+
+	protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+		int size = digest.getDigestSize();
+		if (len < size) {
+			throw new DigestException("partial digests not returned");
+		}
+		if (offset < 0 || offset + size > buf.length) {
+			throw new DigestException("insufficient space in the output buffer to store the digest");
+		}
+		return digest.doFinal(buf, offset);
+	}
+
+	protected void engineReset() {
+		digest.reset();
+	}
+
+	public Object clone() throws CloneNotSupportedException {
+		SHA3MessageDigest clone = (SHA3MessageDigest) super.clone();
+		clone.digest = (KeccakDigest) digest.copy();
+		return clone;
+	}
+}
+
+/**
+ * Hashes many independent messages with the one-shot sponge in
+ * KeccakDigest.hash, reusing a single set of lanes per worker.
+ * <p>
+ * Interleaving several states in one loop body does not pay off here: with
+ * 2 states C2 runs out of registers for the 50 live lanes and spills, and
+ * a lane-major layout with short loops over the states for SuperWord was
+ * slower than the unrolled single-state permutation. Independent states are
+ * instead processed 4 or 8 ways in parallel on the common fork-join pool,
+ * each way with its own lanes, once a batch is large enough to be worth it.
+ */
+class KeccakBatch {
+
+	/**
+	 * Number of states processed in parallel: 8 or 4 depending on the cores
+	 * available, 1 (plain sequential) on small machines. Can be forced with
+	 * -Dcom.cryptoregistry.ml.sha3.ways=1|4|8
+	 */
+	static final int WAYS = selectWays();
+
+	// below this many input bytes the fork-join overhead is not recovered
+	static final long PARALLEL_THRESHOLD = 64 * 1024;
+
+	private static int selectWays() {
+		int forced = Integer.getInteger("com.cryptoregistry.ml.sha3.ways", 0);
+		if (forced == 1 || forced == 4 || forced == 8) {
+			return forced;
+		}
+		int cpus = Runtime.getRuntime().availableProcessors();
+		return cpus >= 8 ? 8 : cpus >= 4 ? 4 : 1;
+	}
+
+	final int rateBytes;
+	final int ds;
+	final int outLen;
+	final int rounds;
+	final int ways;
+	final Executor executor;
+	private final long[] A = new long[25];
+
+	KeccakBatch(int rateBytes, int ds, int outLen) {
+		this(rateBytes, ds, outLen, WAYS, null);
+	}
+
+	/**
+	 * @param executor runs the parallel ranges; null for the common fork-join
+	 *            pool
+	 */
+	KeccakBatch(int rateBytes, int ds, int outLen, int ways, Executor executor) {
+		this(rateBytes, ds, outLen, 24, ways, executor);
+	}
+
+	/**
+	 * @param rounds rounds of the permutation, 24 or 12 for TurboSHAKE
+	 */
+	KeccakBatch(int rateBytes, int ds, int outLen, int rounds, int ways, Executor executor) {
+		this.rateBytes = rateBytes;
+		this.ds = ds;
+		this.outLen = outLen;
+		this.rounds = rounds;
+		this.ways = ways;
+		this.executor = executor;
+	}
+
+	static KeccakBatch shake(int bitLength, int outLen, Executor executor) {
+		return new KeccakBatch((1600 - 2 * bitLength) / 8, 0x1F, outLen, WAYS, executor);
+	}
+
+	/**
+	 * TurboSHAKE with domain separation byte D, as used for the leaves of
+	 * KangarooTwelve.
+	 */
+	static KeccakBatch turboShake(int bitLength, int D, int outLen, Executor executor) {
+		return new KeccakBatch((1600 - 2 * bitLength) / 8, D, outLen, 12, WAYS, executor);
+	}
+
+	static KeccakBatch sha3(int bitLength) {
+		switch (bitLength) {
+		case 224:
+		case 256:
+		case 384:
+		case 512:
+			return new KeccakBatch((1600 - 2 * bitLength) / 8, 0x06, bitLength / 8);
+		default:
+			throw new IllegalArgumentException("'bitLength' " + bitLength
+					+ " not supported for SHA-3");
+		}
+	}
+
+	/**
+	 * Hash each in[i] into out[i], which must hold outLen bytes.
+	 */
+	void hash(final byte[][] in, final byte[][] out) {
+		if (in.length != out.length) {
+			throw new IllegalArgumentException("one output per message required");
+		}
+		long total = 0;
+		for (byte[] m : in) total += m.length;
+
+		forEach(in.length, total, new Job() {
+			public void run(long[] A, int i) {
+				KeccakDigest.hash(A, rounds, rateBytes, ds, in[i], 0, in[i].length, out[i], 0, outLen);
+			}
+		});
+	}
+
+	/**
+	 * Hash consecutive chunkSize byte chunks of in into consecutive outLen
+	 * byte digests in out.
+	 * 
+	 * @return the number of chunks
+	 */
+	int hashChunks(final byte[] in, final int off, final int len, final int chunkSize, final byte[] out,
+			final int outOff) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		if (off < 0 || len < 0 || off + len > in.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+		int count = len == 0 ? 0 : (int) ((len + (long) chunkSize - 1) / chunkSize);
+		if (outOff < 0 || outOff + (long) count * outLen > out.length) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		forEach(count, len, new Job() {
+			public void run(long[] A, int i) {
+				int n = Math.min(chunkSize, len - i * chunkSize);
+				KeccakDigest.hash(A, rounds, rateBytes, ds, in, off + i * chunkSize, n, out, outOff + i * outLen, outLen);
+			}
+		});
+		return count;
+	}
+
+	/**
+	 * As above from a buffer, which must be in little-endian order, at the
+	 * absolute index off. The buffer's position is not changed.
+	 */
+	int hashChunks(final ByteBuffer in, final int off, final int len, final int chunkSize, final byte[] out,
+			final int outOff) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		if (in.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("buffer must be little-endian");
+		}
+		if (off < 0 || len < 0 || off + len > in.limit()) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+		int count = len == 0 ? 0 : (int) ((len + (long) chunkSize - 1) / chunkSize);
+		if (outOff < 0 || outOff + (long) count * outLen > out.length) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		forEach(count, len, new Job() {
+			public void run(long[] A, int i) {
+				int n = Math.min(chunkSize, len - i * chunkSize);
+				KeccakDigest.hash(A, rounds, rateBytes, ds, in, off + i * chunkSize, n, out, outOff + i * outLen, outLen);
+			}
+		});
+		return count;
+	}
+
+	interface Job {
+		/** Hash item i on the lanes A, which are zero on entry */
+		void run(long[] A, int i);
+	}
+
+	/*
+	 * Run job for items 0 to count - 1, split into up to ways contiguous
+	 * ranges when the input is large enough. The lanes are cleared after
+	 * every item.
+	 */
+	void forEach(int count, long totalBytes, final Job job) {
+		int parts = totalBytes < PARALLEL_THRESHOLD ? 1 : Math.min(ways, count);
+		if (parts <= 1) {
+			run(job, A, 0, count);
+			return;
+		}
+
+		List<Runnable> ranges = new ArrayList<Runnable>(parts);
+		for (int w = 0; w < parts; w++) {
+			final int from = (int) ((long) count * w / parts);
+			final int to = (int) ((long) count * (w + 1) / parts);
+			ranges.add(new Runnable() {
+				public void run() {
+					KeccakBatch.run(job, new long[25], from, to);
+				}
+			});
+		}
+
+		if (executor == null) {
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(parts);
+			for (Runnable r : ranges) {
+				tasks.add(ForkJoinTask.adapt(r));
+			}
+			ForkJoinTask.invokeAll(tasks);
+			return;
+		}
+
+		// the last range runs on the calling thread
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(parts - 1);
+		for (int w = 0; w < parts - 1; w++) {
+			FutureTask<Void> task = new FutureTask<Void>(ranges.get(w), null);
+			tasks.add(task);
+			executor.execute(task);
+		}
+		ranges.get(parts - 1).run();
+		boolean interrupted = false;
+		try {
+			for (FutureTask<Void> task : tasks) {
+				while (true) {
+					try {
+						task.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+						if (cause instanceof Error) throw (Error) cause;
+						throw new IllegalStateException(cause);
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void run(Job job, long[] A, int from, int to) {
+		try {
+			for (int i = from; i < to; i++) {
+				job.run(A, i);
+				Arrays.fill(A, 0L);
+			}
+		} finally {
+			Arrays.fill(A, 0L);
+		}
+	}
+}
+
+/**
+ * Merkle tree over SHA3-256 in the shape of RFC 6962: leaf hashes are
+ * H(0x00 || leaf), interior nodes H(0x01 || left || right), and a level
+ * with an odd number of nodes promotes its last node unchanged. The input
+ * is cut into fixed-size leaves, the last possibly shorter, and the leaves
+ * and wide levels are hashed as a KeccakBatch on the fork-join pool. All
+ * levels are kept, 32 bytes per node, so a changed leaf costs one hash per
+ * level and inclusion proofs are read off the levels. The root of no leaves
+ * is SHA3-256 of nothing.
+ */
+class MerkleTree {
+	static final int HASH = 32;
+	static final byte LEAF = 0x00;
+	static final byte NODE = 0x01;
+
+	// SHA3-256
+	private static final int RATE = 136;
+	private static final int DS = 0x06;
+
+	private final int leafSize;
+	// levels[0] holds the leaf hashes, the last level the root
+	private final byte[][] levels;
+	private final int[] widths;
+	private final long[] lanes = new long[25];
+
+	/**
+	 * @param executor null for the common fork-join pool
+	 */
+	MerkleTree(final byte[] data, final int off, final int len, final int leafSize, Executor executor) {
+		if (leafSize <= 0) {
+			throw new IllegalArgumentException("leafSize must be positive");
+		}
+		if (off < 0 || len < 0 || off + len > data.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+		this.leafSize = leafSize;
+		KeccakBatch batch = new KeccakBatch(RATE, DS, HASH, KeccakBatch.WAYS, executor);
+
+		int n = len == 0 ? 0 : (int) ((len + (long) leafSize - 1) / leafSize);
+		if (n > Integer.MAX_VALUE / HASH) {
+			throw new IllegalArgumentException("too many leaves");
+		}
+		int height = 1;
+		for (int w = n; w > 1; w = (w + 1) / 2) {
+			height++;
+		}
+		levels = new byte[height][];
+		widths = new int[height];
+
+		final byte[] leaves = levels[0] = new byte[n * HASH];
+		widths[0] = n;
+		batch.forEach(n, len, new KeccakBatch.Job() {
+			public void run(long[] A, int i) {
+				int m = Math.min(leafSize, len - i * leafSize);
+				KeccakDigest.hashPrefixed(A, 24, RATE, DS, LEAF, data, off + i * leafSize, m, leaves, i * HASH, HASH);
+			}
+		});
+
+		for (int h = 1; h < height; h++) {
+			final byte[] below = levels[h - 1];
+			int w = widths[h - 1];
+			final byte[] level = levels[h] = new byte[(w + 1) / 2 * HASH];
+			widths[h] = (w + 1) / 2;
+			batch.forEach(w / 2, (long) w * HASH, new KeccakBatch.Job() {
+				public void run(long[] A, int j) {
+					KeccakDigest.hashPrefixed(A, 24, RATE, DS, NODE, below, 2 * j * HASH, 2 * HASH, level, j * HASH, HASH);
+				}
+			});
+			if ((w & 1) != 0) {
+				System.arraycopy(below, (w - 1) * HASH, level, (w - 1) / 2 * HASH, HASH);
+			}
+		}
+	}
+
+	public int getLeafSize() {
+		return leafSize;
+	}
+
+	public int getLeafCount() {
+		return widths[0];
+	}
+
+	public byte[] getRoot() {
+		if (widths[0] == 0) {
+			return emptyRoot();
+		}
+		return Arrays.copyOf(levels[levels.length - 1], HASH);
+	}
+
+	/**
+	 * Replace leaf index with len bytes of leaf at off and recompute the
+	 * hashes on its path to the root. Every leaf but the last must be exactly
+	 * leafSize bytes, the last one to leafSize bytes, as the tree would be
+	 * built from the changed data.
+	 */
+	public void updateLeaf(int index, byte[] leaf, int off, int len) {
+		if (index < 0 || index >= widths[0]) {
+			throw new IndexOutOfBoundsException("no leaf " + index);
+		}
+		if (off < 0 || len < 0 || off > leaf.length - len) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+		if (index < widths[0] - 1 ? len != leafSize : len == 0 || len > leafSize) {
+			throw new IllegalArgumentException(index < widths[0] - 1 ? "leaf must be " + leafSize + " bytes"
+					: "last leaf must be 1 to " + leafSize + " bytes");
+		}
+
+		try {
+			KeccakDigest.hashPrefixed(lanes, 24, RATE, DS, LEAF, leaf, off, len, levels[0], index * HASH, HASH);
+			for (int h = 1; h < levels.length; h++) {
+				Arrays.fill(lanes, 0L);
+				int parent = index >>> 1;
+				if ((index ^ 1) < widths[h - 1]) {
+					KeccakDigest.hashPrefixed(lanes, 24, RATE, DS, NODE, levels[h - 1], (index & ~1) * HASH, 2 * HASH,
+							levels[h], parent * HASH, HASH);
+				} else {
+					System.arraycopy(levels[h - 1], index * HASH, levels[h], parent * HASH, HASH);
+				}
+				index = parent;
+			}
+		} finally {
+			Arrays.fill(lanes, 0L);
+		}
+	}
+
+	/**
+	 * The inclusion proof of leaf index: the sibling hashes from the leaf up,
+	 * leaving out levels where the node is promoted.
+	 */
+	public byte[][] getProof(int index) {
+		if (index < 0 || index >= widths[0]) {
+			throw new IndexOutOfBoundsException("no leaf " + index);
+		}
+		List<byte[]> proof = new ArrayList<byte[]>(levels.length);
+		for (int h = 0; h < levels.length - 1; h++) {
+			int sibling = index ^ 1;
+			if (sibling < widths[h]) {
+				proof.add(Arrays.copyOfRange(levels[h], sibling * HASH, (sibling + 1) * HASH));
+			}
+			index >>>= 1;
+		}
+		return proof.toArray(new byte[proof.size()][]);
+	}
+
+	/**
+	 * Check that len bytes of leaf at off are leaf index of a tree of
+	 * leafCount leaves with the given root.
+	 */
+	static boolean verify(byte[] root, long index, long leafCount, byte[] leaf, int off, int len, byte[][] proof) {
+		if (index < 0 || index >= leafCount || root.length != HASH) {
+			return false;
+		}
+		long[] A = new long[25];
+		byte[] pair = new byte[2 * HASH];
+		byte[] node = new byte[HASH];
+		KeccakDigest.hashPrefixed(A, 24, RATE, DS, LEAF, leaf, off, len, node, 0, HASH);
+
+		int p = 0;
+		for (long width = leafCount; width > 1; width = (width + 1) >>> 1, index >>>= 1) {
+			boolean right = (index & 1) != 0;
+			if (!right && index + 1 >= width) {
+				continue; // promoted
+			}
+			if (p == proof.length || proof[p].length != HASH) {
+				return false;
+			}
+			System.arraycopy(proof[p++], 0, pair, right ? 0 : HASH, HASH);
+			System.arraycopy(node, 0, pair, right ? HASH : 0, HASH);
+			Arrays.fill(A, 0L);
+			KeccakDigest.hashPrefixed(A, 24, RATE, DS, NODE, pair, 0, 2 * HASH, node, 0, HASH);
+		}
+		return p == proof.length && Arrays.equals(node, root);
+	}
+
+	// leaves read per batch: enough for 1 MB, or one per way for large leaves
+	private static final int BATCH_BYTES = 1 << 20;
+	private static final int MAX_BATCH = 1024;
+
+	/**
+	 * The root of the leaves read from channel, computed as they stream in.
+	 * Leaves are read a batch at a time and hashed as a KeccakBatch, then
+	 * folded in order into one pending node per level: after count leaves
+	 * there is a pending subtree at each level whose bit is set in count.
+	 * Memory is one batch buffer, its leaf hashes and the pending nodes.
+	 */
+	static byte[] root(ReadableByteChannel channel, final int leafSize) throws IOException {
+		if (leafSize <= 0) {
+			throw new IllegalArgumentException("leafSize must be positive");
+		}
+		int k = Math.max(KeccakBatch.WAYS, Math.min(MAX_BATCH, BATCH_BYTES / leafSize));
+		if ((long) k * leafSize > Integer.MAX_VALUE - 8) {
+			k = Math.max(1, (Integer.MAX_VALUE - 8) / leafSize);
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(k * leafSize);
+		final byte[] leaves = new byte[k * HASH];
+		KeccakBatch batch = new KeccakBatch(RATE, DS, HASH, KeccakBatch.WAYS, null);
+		byte[] pending = new byte[64 * HASH];
+		byte[] pair = new byte[2 * HASH];
+		long[] A = new long[25];
+		long count = 0;
+
+		while (true) {
+			buffer.clear();
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			if (buffer.position() == 0) {
+				break;
+			}
+
+			final int filled = buffer.position();
+			int n = (filled + leafSize - 1) / leafSize;
+			batch.forEach(n, filled, new KeccakBatch.Job() {
+				public void run(long[] A, int i) {
+					int m = Math.min(leafSize, filled - i * leafSize);
+					KeccakDigest.hashPrefixed(A, 24, RATE, DS, LEAF, buffer.array(), i * leafSize, m, leaves,
+							i * HASH, HASH);
+				}
+			});
+
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(leaves, i * HASH, pair, HASH, HASH);
+				int level = 0;
+				while ((count & (1L << level)) != 0) {
+					System.arraycopy(pending, level * HASH, pair, 0, HASH);
+					Arrays.fill(A, 0L);
+					KeccakDigest.hashPrefixed(A, 24, RATE, DS, NODE, pair, 0, 2 * HASH, pair, HASH, HASH);
+					level++;
+				}
+				System.arraycopy(pair, HASH, pending, level * HASH, HASH);
+				count++;
+			}
+
+			if (buffer.hasRemaining()) {
+				break; // end of input
+			}
+		}
+
+		if (count == 0) {
+			return emptyRoot();
+		}
+
+		// fold the pending subtrees, smallest (rightmost) first
+		int level = Long.numberOfTrailingZeros(count);
+		System.arraycopy(pending, level * HASH, pair, HASH, HASH);
+		for (level++; level < 64; level++) {
+			if ((count & (1L << level)) != 0) {
+				System.arraycopy(pending, level * HASH, pair, 0, HASH);
+				Arrays.fill(A, 0L);
+				KeccakDigest.hashPrefixed(A, 24, RATE, DS, NODE, pair, 0, 2 * HASH, pair, HASH, HASH);
+			}
+		}
+		return Arrays.copyOfRange(pair, HASH, 2 * HASH);
+	}
+
+	private static byte[] emptyRoot() {
+		byte[] root = new byte[HASH];
+		KeccakDigest.hash(new long[25], 24, RATE, DS, root, 0, 0, root, 0, HASH);
+		return root;
+	}
+}
+
+/**
+ * implementation of SHA-3 based on following KeccakNISTInterface.c from
+ * http://keccak.noekeon.org/
+ * <p>
+ * Following the naming conventions used in the C source code to enable easy
+ * review of the implementation.
+ */
+class SHA3Digest extends KeccakDigest {
+	private static int checkBitLength(int bitLength) {
+		switch (bitLength) {
+		case 224:
+		case 256:
+		case 384:
+		case 512:
+			return bitLength;
+		default:
+			throw new IllegalArgumentException("'bitLength' " + bitLength
+					+ " not supported for SHA-3");
+		}
+	}
+
+	SHA3Digest() {
+		this(256);
+	}
+
+	SHA3Digest(int bitLength) {
+		super(checkBitLength(bitLength));
+	}
+
+	SHA3Digest(SHA3Digest source) {
+		super(source);
+	}
+
+	public Memoable copy() {
+		return new SHA3Digest(this);
+	}
+
+	public String getAlgorithmName() {
+		return "SHA3-" + fixedOutputLength;
+	}
+
+	public int doFinal(byte[] out, int outOff) {
+		oneByte[0] = 0x02;
+		absorb(oneByte, 0, 2);
+
+		return super.doFinal(out, outOff);
+	}
+
+	/*
+	 * TODO Possible API change to support partial-byte suffixes.
+	 */
+	protected int doFinal(byte[] out, int outOff, byte partialByte,
+			int partialBits) {
+		if (partialBits < 0 || partialBits > 7) {
+			throw new IllegalArgumentException(
+					"'partialBits' must be in the range [0,7]");
+		}
+
+		int finalInput = (partialByte & ((1 << partialBits) - 1))
+				| (0x02 << partialBits);
+		int finalBits = partialBits + 2;
+
+		if (finalBits >= 8) {
+			oneByte[0] = (byte) finalInput;
+			absorb(oneByte, 0, 8);
+			finalBits -= 8;
+			finalInput >>>= 8;
+		}
+
+		return super.doFinal(out, outOff, (byte) finalInput, finalBits);
+	}
+}
+
+
+/**
+ * implementation of SHAKE based on following KeccakNISTInterface.c from
+ * http://keccak.noekeon.org/
+ * <p>
+ * Following the naming conventions used in the C source code to enable easy
+ * review of the implementation.
+ */
+class SHAKEDigest extends KeccakDigest implements Xof {
+	private static int checkBitLength(int bitLength) {
+		switch (bitLength) {
+		case 128:
+		case 256:
+			return bitLength;
+		default:
+			throw new IllegalArgumentException("'bitLength' " + bitLength
+					+ " not supported for SHAKE");
+		}
+	}
+
+	public SHAKEDigest() {
+		this(128);
+	}
+
+	public SHAKEDigest(int bitLength) {
+		super(checkBitLength(bitLength));
+	}
+
+	public SHAKEDigest(SHAKEDigest source) {
+		super(source);
+	}
+
+	public Memoable copy() {
+		return new SHAKEDigest(this);
+	}
+
+	public String getAlgorithmName() {
+		return "SHAKE" + fixedOutputLength;
+	}
+
+	public int doFinal(byte[] out, int outOff) {
+		return doFinal(out, outOff, getDigestSize());
+	}
+
+	public int doFinal(byte[] out, int outOff, int outLen) {
+		int length = doOutput(out, outOff, outLen);
+
+		reset();
+
+		return length;
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (!squeezing) {
+			oneByte[0] = 0x0F;
+			absorb(oneByte, 0, 4);
+		}
+
+		squeeze(out, outOff, ((long) outLen) * 8);
+
+		return outLen;
+	}
+
+	/*
+	 * TODO Possible API change to support partial-byte suffixes.
+	 */
+	protected int doFinal(byte[] out, int outOff, byte partialByte,
+			int partialBits) {
+		return doFinal(out, outOff, getDigestSize(), partialByte, partialBits);
+	}
+
+	/*
+	 * TODO Possible API change to support partial-byte suffixes.
+	 */
+	protected int doFinal(byte[] out, int outOff, int outLen, byte partialByte,
+			int partialBits) {
+		if (partialBits < 0 || partialBits > 7) {
+			throw new IllegalArgumentException(
+					"'partialBits' must be in the range [0,7]");
+		}
+
+		int finalInput = (partialByte & ((1 << partialBits) - 1))
+				| (0x0F << partialBits);
+		int finalBits = partialBits + 4;
+
+		if (finalBits >= 8) {
+			oneByte[0] = (byte) finalInput;
+			absorb(oneByte, 0, 8);
+			finalBits -= 8;
+			finalInput >>>= 8;
+		}
+
+		if (finalBits > 0) {
+			oneByte[0] = (byte) finalInput;
+			absorb(oneByte, 0, finalBits);
+		}
+
+		squeeze(out, outOff, ((long) outLen) * 8);
+
+		reset();
+
+		return outLen;
+	}
+}
+
+
+/**
+ * Customizable SHAKE function (NIST SP 800-185). The prefix
+ * bytepad(encode_string(N) || encode_string(S), rate) is absorbed on
+ * construction and again on every reset.
+ */
+class CSHAKEDigest extends SHAKEDigest {
+	private static final byte[] padding = new byte[100];
+	private final byte[] diff;
+
+	/**
+	 * @param bitLength 128 or 256
+	 * @param N function name, may be null
+	 * @param S customization string, may be null
+	 */
+	CSHAKEDigest(int bitLength, byte[] N, byte[] S) {
+		super(bitLength);
+
+		if ((N == null || N.length == 0) && (S == null || S.length == 0)) {
+			diff = null;
+		} else {
+			diff = XofUtils.concatenate(XofUtils.leftEncode(rate / 8), XofUtils.encodeString(N),
+					XofUtils.encodeString(S));
+			diffPaddingAndAbsorb();
+		}
+	}
+
+	CSHAKEDigest(CSHAKEDigest source) {
+		super(source);
+		this.diff = source.diff;
+	}
+
+	public Memoable copy() {
+		return new CSHAKEDigest(this);
+	}
+
+	public void reset(Memoable other) {
+		if (other instanceof CSHAKEDigest && !Arrays.equals(diff, ((CSHAKEDigest) other).diff)) {
+			throw new IllegalArgumentException("attempt to reset from a different customization");
+		}
+		super.reset(other);
+	}
+
+	public String getAlgorithmName() {
+		return "CSHAKE" + fixedOutputLength;
+	}
+
+	// a SHA3-256 of the prefix keeps the exported state short
+	byte[] stateParameters() {
+		if (diff == null) {
+			return new byte[0];
+		}
+		byte[] out = new byte[32];
+		KeccakDigest.hash(new long[25], 24, 136, 0x06, diff, 0, diff.length, out, 0, out.length);
+		return out;
+	}
+
+	// bytepad() the prefix out to a whole number of blocks
+	private void diffPaddingAndAbsorb() {
+		int blockSize = rate / 8;
+		absorbBytes(diff, 0, diff.length);
+
+		int delta = diff.length % blockSize;
+
+		// only add padding if needed
+		if (delta != 0) {
+			int required = blockSize - delta;
+
+			while (required > padding.length) {
+				absorbBytes(padding, 0, padding.length);
+				required -= padding.length;
+			}
+
+			absorbBytes(padding, 0, required);
+		}
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (diff != null) {
+			if (!squeezing) {
+				oneByte[0] = 0x00;
+				absorb(oneByte, 0, 2);
+			}
+
+			squeeze(out, outOff, ((long) outLen) * 8);
+
+			return outLen;
+		} else {
+			return super.doOutput(out, outOff, outLen);
+		}
+	}
+
+	public void reset() {
+		super.reset();
+
+		if (diff != null) {
+			diffPaddingAndAbsorb();
+		}
+	}
+}
+
+
+/**
+ * ParallelHash (NIST SP 800-185): the input is cut into B byte leaves, each
+ * leaf is hashed with cSHAKE (N and S empty) and the leaf digests are
+ * absorbed, in order, by a cSHAKE with N = "ParallelHash". Runs of complete
+ * leaves supplied by one update are hashed as a KeccakBatch, so they are
+ * spread over the fork-join pool (or the given executor) when large enough.
+ */
+class ParallelHash implements Xof {
+	private static final byte[] N_PARALLEL_HASH = XofUtils.toBytes("ParallelHash");
+
+	// leaves per batch, bounds the temporary leaf digest buffer
+	private static final int MAX_BATCH = 4096;
+
+	private final CSHAKEDigest cshake;
+	private final KeccakBatch leaves;
+	private final int bitLength;
+	private final int outputLength;
+	private final int B;
+	private final byte[] buffer;
+	private final long[] lanes = new long[25];
+	private byte[] leafOut;
+
+	private int bufOff;
+	private boolean firstOutput;
+	private long nCount;
+
+	/**
+	 * @param bitLength 128 or 256
+	 * @param S customization string, may be null
+	 * @param B leaf size in bytes
+	 * @param executor null for the common fork-join pool
+	 */
+	ParallelHash(int bitLength, byte[] S, int B, Executor executor) {
+		if (B <= 0) {
+			throw new IllegalArgumentException("block size must be positive");
+		}
+		this.cshake = new CSHAKEDigest(bitLength, N_PARALLEL_HASH, S);
+		this.leaves = KeccakBatch.shake(bitLength, bitLength * 2 / 8, executor);
+		this.bitLength = bitLength;
+		this.B = B;
+		this.outputLength = (bitLength * 2) / 8;
+		this.buffer = new byte[B];
+		this.leafOut = new byte[leaves.outLen];
+
+		reset();
+	}
+
+	public String getAlgorithmName() {
+		return "ParallelHash" + bitLength;
+	}
+
+	public int getByteLength() {
+		return cshake.getByteLength();
+	}
+
+	public int getDigestSize() {
+		return outputLength;
+	}
+
+	public void update(byte in) {
+		buffer[bufOff++] = in;
+		if (bufOff == buffer.length) {
+			compress(buffer, 0, B, 1);
+			bufOff = 0;
+		}
+	}
+
+	public void update(byte[] in, int inOff, int len) {
+		if (inOff < 0 || len < 0 || inOff + len > in.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+
+		// complete a partially buffered leaf first
+		if (bufOff != 0) {
+			int n = Math.min(len, B - bufOff);
+			System.arraycopy(in, inOff, buffer, bufOff, n);
+			bufOff += n;
+			inOff += n;
+			len -= n;
+			if (bufOff < B) {
+				return;
+			}
+			compress(buffer, 0, B, 1);
+			bufOff = 0;
+		}
+
+		while (len >= B) {
+			int count = Math.min(len / B, MAX_BATCH);
+			compress(in, inOff, B, count);
+			inOff += count * B;
+			len -= count * B;
+		}
+
+		System.arraycopy(in, inOff, buffer, 0, len);
+		bufOff = len;
+	}
+
+	public void update(ByteBuffer in) {
+		if (in.hasArray()) {
+			update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+			in.position(in.limit());
+			return;
+		}
+
+		if (bufOff != 0) {
+			int n = Math.min(in.remaining(), B - bufOff);
+			in.get(buffer, bufOff, n);
+			bufOff += n;
+			if (bufOff < B) {
+				return;
+			}
+			compress(buffer, 0, B, 1);
+			bufOff = 0;
+		}
+
+		if (in.remaining() >= B) {
+			// leaves are read in place, possibly by several threads
+			ByteBuffer le = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int off = in.position();
+			int len = in.remaining();
+			while (len >= B) {
+				int count = Math.min(len / B, MAX_BATCH);
+				compress(le, off, B, count);
+				off += count * B;
+				len -= count * B;
+			}
+			in.position(off);
+		}
+
+		bufOff = in.remaining();
+		in.get(buffer, 0, bufOff);
+	}
+
+	/*
+	 * Hash count consecutive leaves of leafLen bytes and absorb their
+	 * digests in order.
+	 */
+	private void compress(byte[] in, int inOff, int leafLen, int count) {
+		if (count == 1) {
+			try {
+				KeccakDigest.hash(lanes, leaves.rounds, leaves.rateBytes, leaves.ds, in, inOff, leafLen, leafOut, 0, leaves.outLen);
+			} finally {
+				Arrays.fill(lanes, 0L);
+			}
+			cshake.update(leafOut, 0, leaves.outLen);
+		} else {
+			if (leafOut.length < count * leaves.outLen) {
+				leafOut = new byte[count * leaves.outLen];
+			}
+			leaves.hashChunks(in, inOff, count * leafLen, leafLen, leafOut, 0);
+			cshake.update(leafOut, 0, count * leaves.outLen);
+		}
+		nCount += count;
+	}
+
+	// as above from a little-endian buffer at the absolute index inOff
+	private void compress(ByteBuffer in, int inOff, int leafLen, int count) {
+		if (count == 1) {
+			try {
+				KeccakDigest.hash(lanes, leaves.rounds, leaves.rateBytes, leaves.ds, in, inOff, leafLen, leafOut, 0, leaves.outLen);
+			} finally {
+				Arrays.fill(lanes, 0L);
+			}
+			cshake.update(leafOut, 0, leaves.outLen);
+		} else {
+			if (leafOut.length < count * leaves.outLen) {
+				leafOut = new byte[count * leaves.outLen];
+			}
+			leaves.hashChunks(in, inOff, count * leafLen, leafLen, leafOut, 0);
+			cshake.update(leafOut, 0, count * leaves.outLen);
+		}
+		nCount += count;
+	}
+
+	private void wrapUp(int outputSize) {
+		if (bufOff != 0) {
+			compress(buffer, 0, bufOff, 1);
+			bufOff = 0;
+		}
+		byte[] nOut = XofUtils.rightEncode(nCount);
+		byte[] encOut = XofUtils.rightEncode(outputSize * 8L);
+
+		cshake.update(nOut, 0, nOut.length);
+		cshake.update(encOut, 0, encOut.length);
+
+		firstOutput = false;
+	}
+
+	public int doFinal(byte[] out, int outOff) {
+		if (firstOutput) {
+			wrapUp(outputLength);
+		}
+
+		int rv = cshake.doFinal(out, outOff, getDigestSize());
+
+		reset();
+
+		return rv;
+	}
+
+	public int doFinal(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			wrapUp(outLen);
+		}
+
+		int rv = cshake.doFinal(out, outOff, outLen);
+
+		reset();
+
+		return rv;
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			wrapUp(0);
+		}
+
+		return cshake.doOutput(out, outOff, outLen);
+	}
+
+	public void reset() {
+		cshake.reset();
+		Arrays.fill(buffer, (byte) 0);
+
+		byte[] hdr = XofUtils.leftEncode(B);
+		cshake.update(hdr, 0, hdr.length);
+
+		nCount = 0;
+		bufOff = 0;
+		firstOutput = true;
+	}
+}
+
+
+/**
+ * KMAC128/256 (NIST SP 800-185): cSHAKE with N = "KMAC" over
+ * bytepad(encode_string(K), rate) || X || right_encode(L). The keyed prefix
+ * is absorbed once into a snapshot on construction; every reset, and so
+ * every MAC, starts by copying that snapshot's lanes back instead of
+ * absorbing the key again. With the default output length nothing is
+ * allocated per message.
+ */
+class KMAC implements Xof {
+	private static final byte[] N_KMAC = XofUtils.toBytes("KMAC");
+	private static final byte[] XOF_LENGTH = XofUtils.rightEncode(0);
+
+	private final CSHAKEDigest cshake;
+	private final CSHAKEDigest keyed;
+	private final int bitLength;
+	private final int outputLength;
+	private final byte[] encodedLength;
+
+	private boolean firstOutput;
+
+	/**
+	 * @param bitLength 128 or 256
+	 * @param key the MAC key
+	 * @param S customization string, may be null
+	 */
+	KMAC(int bitLength, byte[] key, byte[] S) {
+		if (key == null) {
+			throw new IllegalArgumentException("key required");
+		}
+		this.cshake = new CSHAKEDigest(bitLength, N_KMAC, S);
+		this.bitLength = bitLength;
+		this.outputLength = bitLength * 2 / 8;
+		this.encodedLength = XofUtils.rightEncode(outputLength * 8L);
+
+		// bytepad(encode_string(K), rate)
+		int rate = cshake.getByteLength();
+		byte[] encK = XofUtils.encodeString(key);
+		byte[] prefix = XofUtils.concatenate(XofUtils.leftEncode(rate), encK);
+		cshake.update(prefix, 0, prefix.length);
+		int delta = prefix.length % rate;
+		if (delta != 0) {
+			cshake.update(new byte[rate - delta], 0, rate - delta);
+		}
+		Arrays.fill(encK, (byte) 0);
+		Arrays.fill(prefix, (byte) 0);
+		this.keyed = new CSHAKEDigest(cshake);
+
+		firstOutput = true;
+	}
+
+	public String getAlgorithmName() {
+		return "KMAC" + bitLength;
+	}
+
+	public int getByteLength() {
+		return cshake.getByteLength();
+	}
+
+	public int getDigestSize() {
+		return outputLength;
+	}
+
+	public void update(byte in) {
+		cshake.update(in);
+	}
+
+	public void update(byte[] in, int inOff, int len) {
+		cshake.update(in, inOff, len);
+	}
+
+	public void update(ByteBuffer in) {
+		cshake.update(in);
+	}
+
+	public int doFinal(byte[] out, int outOff) {
+		return doFinal(out, outOff, outputLength);
+	}
+
+	public int doFinal(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			byte[] encOut = outLen == outputLength ? encodedLength : XofUtils.rightEncode(outLen * 8L);
+			cshake.update(encOut, 0, encOut.length);
+		}
+
+		int rv = cshake.doOutput(out, outOff, outLen);
+
+		reset();
+
+		return rv;
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			cshake.update(XOF_LENGTH, 0, XOF_LENGTH.length);
+			firstOutput = false;
+		}
+
+		return cshake.doOutput(out, outOff, outLen);
+	}
+
+	public void reset() {
+		cshake.restore(keyed);
+		firstOutput = true;
+	}
+}
+
+
+/**
+ * TupleHash128/256 (NIST SP 800-185): cSHAKE with N = "TupleHash" over
+ * encode_string(X1) || ... || encode_string(Xn) || right_encode(L). Fields
+ * are absorbed one at a time as they are added, length prefix first, so a
+ * record never has to be serialized into a buffer; each update is one
+ * field. Longs and strings are encoded straight into the sponge.
+ */
+class TupleHash implements Xof {
+	private static final byte[] N_TUPLE_HASH = XofUtils.toBytes("TupleHash");
+	private static final byte[] XOF_LENGTH = XofUtils.rightEncode(0);
+
+	private final CSHAKEDigest cshake;
+	private final CSHAKEDigest initial;
+	private final int bitLength;
+	private final int outputLength;
+	private final byte[] encodedLength;
+	// length prefixes, longs and string chunks are encoded here
+	private final byte[] scratch = new byte[64];
+
+	private boolean firstOutput;
+
+	/**
+	 * @param bitLength 128 or 256
+	 * @param S customization string, may be null
+	 */
+	TupleHash(int bitLength, byte[] S) {
+		this.cshake = new CSHAKEDigest(bitLength, N_TUPLE_HASH, S);
+		this.initial = new CSHAKEDigest(cshake);
+		this.bitLength = bitLength;
+		this.outputLength = bitLength * 2 / 8;
+		this.encodedLength = XofUtils.rightEncode(outputLength * 8L);
+
+		firstOutput = true;
+	}
+
+	public String getAlgorithmName() {
+		return "TupleHash" + bitLength;
+	}
+
+	public int getByteLength() {
+		return cshake.getByteLength();
+	}
+
+	public int getDigestSize() {
+		return outputLength;
+	}
+
+	/**
+	 * A field of one byte.
+	 */
+	public void update(byte in) {
+		fieldLength(1);
+		cshake.update(in);
+	}
+
+	/**
+	 * A field of len bytes.
+	 */
+	public void update(byte[] in, int inOff, int len) {
+		addField(in, inOff, len);
+	}
+
+	/**
+	 * A field of the remaining bytes of in.
+	 */
+	public void update(ByteBuffer in) {
+		fieldLength(in.remaining());
+		cshake.update(in);
+	}
+
+	public void addField(byte[] in, int inOff, int len) {
+		if (inOff < 0 || len < 0 || inOff + len > in.length) {
+			throw new IllegalArgumentException("input buffer too short");
 		}
+		fieldLength(len);
+		cshake.update(in, inOff, len);
 	}
 
-	SHA3Digest() {
-		this(256);
+	/**
+	 * A field of 8 bytes, v in big-endian order.
+	 */
+	public void addField(long v) {
+		int n = XofUtils.leftEncode(64, scratch);
+		for (int i = 0; i < 8; i++) {
+			scratch[n + i] = (byte) (v >>> (56 - 8 * i));
+		}
+		cshake.update(scratch, 0, n + 8);
 	}
 
-	SHA3Digest(int bitLength) {
-		super(checkBitLength(bitLength));
-	}
+	/**
+	 * A field holding s encoded as UTF-8; unpaired surrogates become '?' as
+	 * in String.getBytes.
+	 */
+	public void addField(CharSequence s) {
+		int len = s.length();
+		long utf8 = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				utf8 += 1;
+			} else if (c < 0x800) {
+				utf8 += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				utf8 += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				utf8 += 1;
+			} else {
+				utf8 += 3;
+			}
+		}
+		fieldLength(utf8);
 
-	SHA3Digest(SHA3Digest source) {
-		super(source);
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			if (n > scratch.length - 4) {
+				cshake.update(scratch, 0, n);
+				n = 0;
+			}
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				scratch[n++] = (byte) c;
+			} else if (c < 0x800) {
+				scratch[n++] = (byte) (0xC0 | (c >> 6));
+				scratch[n++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				scratch[n++] = (byte) (0xF0 | (cp >> 18));
+				scratch[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				scratch[n++] = (byte) '?';
+			} else {
+				scratch[n++] = (byte) (0xE0 | (c >> 12));
+				scratch[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				scratch[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		cshake.update(scratch, 0, n);
 	}
 
-	public String getAlgorithmName() {
-		return "SHA3-" + fixedOutputLength;
+	// left_encode of the field length in bits
+	private void fieldLength(long len) {
+		int n = XofUtils.leftEncode(len * 8, scratch);
+		cshake.update(scratch, 0, n);
 	}
 
 	public int doFinal(byte[] out, int outOff) {
-		absorb(new byte[] { 0x02 }, 0, 2);
-
-		return super.doFinal(out, outOff);
+		return doFinal(out, outOff, outputLength);
 	}
 
-	/*
-	 * TODO Possible API change to support partial-byte suffixes.
-	 */
-	protected int doFinal(byte[] out, int outOff, byte partialByte,
-			int partialBits) {
-		if (partialBits < 0 || partialBits > 7) {
-			throw new IllegalArgumentException(
-					"'partialBits' must be in the range [0,7]");
+	public int doFinal(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			byte[] encOut = outLen == outputLength ? encodedLength : XofUtils.rightEncode(outLen * 8L);
+			cshake.update(encOut, 0, encOut.length);
 		}
 
-		int finalInput = (partialByte & ((1 << partialBits) - 1))
-				| (0x02 << partialBits);
-		int finalBits = partialBits + 2;
+		int rv = cshake.doOutput(out, outOff, outLen);
 
-		if (finalBits >= 8) {
-			oneByte[0] = (byte) finalInput;
-			absorb(oneByte, 0, 8);
-			finalBits -= 8;
-			finalInput >>>= 8;
+		reset();
+
+		return rv;
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			cshake.update(XOF_LENGTH, 0, XOF_LENGTH.length);
+			firstOutput = false;
 		}
 
-		return super.doFinal(out, outOff, (byte) finalInput, finalBits);
+		return cshake.doOutput(out, outOff, outLen);
+	}
+
+	public void reset() {
+		cshake.restore(initial);
+		firstOutput = true;
 	}
 }
 
 
 /**
- * implementation of SHAKE based on following KeccakNISTInterface.c from
- * http://keccak.noekeon.org/
- * <p>
- * Following the naming conventions used in the C source code to enable easy
- * review of the implementation.
+ * TurboSHAKE128/256: SHAKE on the 12 round permutation Keccak-p[1600, 12],
+ * with a domain separation byte D in 0x01 to 0x7F in place of the SHAKE
+ * suffix. D carries its own first padding bit, so only the bits below its
+ * highest set bit are absorbed before the usual padding.
  */
-class SHAKEDigest extends KeccakDigest implements Xof {
+class TurboSHAKEDigest extends KeccakDigest implements Xof {
 	private static int checkBitLength(int bitLength) {
 		switch (bitLength) {
 		case 128:
@@ -112,24 +1941,47 @@ class SHAKEDigest extends KeccakDigest implements Xof {
 			return bitLength;
 		default:
 			throw new IllegalArgumentException("'bitLength' " + bitLength
-					+ " not supported for SHAKE");
+					+ " not supported for TurboSHAKE");
 		}
 	}
 
-	public SHAKEDigest() {
-		this(128);
+	private final int D;
+
+	TurboSHAKEDigest(int bitLength) {
+		this(bitLength, 0x1F);
 	}
 
-	public SHAKEDigest(int bitLength) {
+	TurboSHAKEDigest(int bitLength, int D) {
 		super(checkBitLength(bitLength));
+		if (D < 0x01 || D > 0x7F) {
+			throw new IllegalArgumentException("'D' must be in the range [0x01,0x7F]");
+		}
+		this.D = D;
+		this.rounds = 12;
 	}
 
-	public SHAKEDigest(SHAKEDigest source) {
+	TurboSHAKEDigest(TurboSHAKEDigest source) {
 		super(source);
+		this.D = source.D;
+	}
+
+	public Memoable copy() {
+		return new TurboSHAKEDigest(this);
+	}
+
+	public void reset(Memoable other) {
+		if (other instanceof TurboSHAKEDigest && ((TurboSHAKEDigest) other).D != D) {
+			throw new IllegalArgumentException("attempt to reset from a different domain separation byte");
+		}
+		super.reset(other);
 	}
 
 	public String getAlgorithmName() {
-		return "SHAKE" + fixedOutputLength;
+		return "TurboSHAKE" + fixedOutputLength;
+	}
+
+	byte[] stateParameters() {
+		return new byte[] { (byte) D };
 	}
 
 	public int doFinal(byte[] out, int outOff) {
@@ -137,7 +1989,7 @@ class SHAKEDigest extends KeccakDigest implements Xof {
 	}
 
 	public int doFinal(byte[] out, int outOff, int outLen) {
-		int length = doOutput(out, outOff, outLen);
+		int length = doOutput(out, outOff, outLen, D);
 
 		reset();
 
@@ -145,54 +1997,290 @@ class SHAKEDigest extends KeccakDigest implements Xof {
 	}
 
 	public int doOutput(byte[] out, int outOff, int outLen) {
+		return doOutput(out, outOff, outLen, D);
+	}
+
+	/*
+	 * Output with a domain separation byte chosen at the end, as needed by the
+	 * final node of KangarooTwelve.
+	 */
+	int doOutput(byte[] out, int outOff, int outLen, int D) {
 		if (!squeezing) {
-			absorb(new byte[] { 0x0F }, 0, 4);
+			int bits = 31 - Integer.numberOfLeadingZeros(D);
+			if (bits > 0) {
+				oneByte[0] = (byte) (D & ((1 << bits) - 1));
+				absorb(oneByte, 0, bits);
+			}
 		}
 
 		squeeze(out, outOff, ((long) outLen) * 8);
 
 		return outLen;
 	}
+}
 
-	/*
-	 * TODO Possible API change to support partial-byte suffixes.
+
+/**
+ * KangarooTwelve (RFC 9861) on TurboSHAKE128. The input S = M || C ||
+ * length_encode(|C|) is cut into 8192 byte chunks. A single chunk is hashed
+ * directly with D = 0x07; otherwise the first chunk goes to the final node
+ * followed by the 32 byte chaining values of all other chunks (D = 0x0B), and
+ * the final node is squeezed with D = 0x06. The first chunk is absorbed by
+ * the final node as it arrives, so only a partial leaf is ever buffered, and
+ * runs of complete leaves are hashed as a KeccakBatch like ParallelHash.
+ */
+class KangarooTwelve implements Xof {
+	private static final int CHUNK = 8192;
+	private static final int CV = 32;
+	private static final byte[] TREE_HEADER = { 0x03, 0, 0, 0, 0, 0, 0, 0 };
+	private static final byte[] TREE_TRAILER = { (byte) 0xFF, (byte) 0xFF };
+
+	// leaves per batch, bounds the temporary chaining value buffer
+	private static final int MAX_BATCH = 4096;
+
+	private final TurboSHAKEDigest node = new TurboSHAKEDigest(128, 0x07);
+	private final KeccakBatch leaves;
+	private final byte[] C;
+	private final byte[] buffer = new byte[CHUNK];
+	private final long[] lanes = new long[25];
+	private byte[] leafOut = new byte[CV];
+
+	private int firstLen;
+	private int D;
+	private int bufOff;
+	private boolean tree;
+	private boolean firstOutput;
+	private long leafCount;
+
+	/**
+	 * @param C customization string, may be null
+	 * @param executor null for the common fork-join pool
 	 */
-	protected int doFinal(byte[] out, int outOff, byte partialByte,
-			int partialBits) {
-		return doFinal(out, outOff, getDigestSize(), partialByte, partialBits);
+	KangarooTwelve(byte[] C, Executor executor) {
+		this.C = C == null ? new byte[0] : C.clone();
+		this.leaves = KeccakBatch.turboShake(128, 0x0B, CV, executor);
+
+		reset();
+	}
+
+	public String getAlgorithmName() {
+		return "KangarooTwelve";
+	}
+
+	public int getByteLength() {
+		return node.getByteLength();
+	}
+
+	public int getDigestSize() {
+		return CV;
+	}
+
+	public void update(byte in) {
+		if (!tree) {
+			if (firstLen < CHUNK) {
+				node.update(in);
+				firstLen++;
+				return;
+			}
+			startTree();
+		}
+
+		buffer[bufOff++] = in;
+		if (bufOff == CHUNK) {
+			compress(buffer, 0, CHUNK, 1);
+			bufOff = 0;
+		}
+	}
+
+	public void update(byte[] in, int inOff, int len) {
+		if (inOff < 0 || len < 0 || inOff + len > in.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+
+		if (!tree) {
+			int n = Math.min(len, CHUNK - firstLen);
+			node.update(in, inOff, n);
+			firstLen += n;
+			inOff += n;
+			len -= n;
+			if (len == 0) {
+				return;
+			}
+			startTree();
+		}
+
+		// complete a partially buffered leaf first
+		if (bufOff != 0) {
+			int n = Math.min(len, CHUNK - bufOff);
+			System.arraycopy(in, inOff, buffer, bufOff, n);
+			bufOff += n;
+			inOff += n;
+			len -= n;
+			if (bufOff < CHUNK) {
+				return;
+			}
+			compress(buffer, 0, CHUNK, 1);
+			bufOff = 0;
+		}
+
+		while (len >= CHUNK) {
+			int count = Math.min(len / CHUNK, MAX_BATCH);
+			compress(in, inOff, CHUNK, count);
+			inOff += count * CHUNK;
+			len -= count * CHUNK;
+		}
+
+		System.arraycopy(in, inOff, buffer, 0, len);
+		bufOff = len;
+	}
+
+	public void update(ByteBuffer in) {
+		if (in.hasArray()) {
+			update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+			in.position(in.limit());
+			return;
+		}
+
+		if (!tree) {
+			int n = Math.min(in.remaining(), CHUNK - firstLen);
+			int limit = in.limit();
+			in.limit(in.position() + n);
+			node.update(in);
+			in.limit(limit);
+			firstLen += n;
+			if (!in.hasRemaining()) {
+				return;
+			}
+			startTree();
+		}
+
+		if (bufOff != 0) {
+			int n = Math.min(in.remaining(), CHUNK - bufOff);
+			in.get(buffer, bufOff, n);
+			bufOff += n;
+			if (bufOff < CHUNK) {
+				return;
+			}
+			compress(buffer, 0, CHUNK, 1);
+			bufOff = 0;
+		}
+
+		if (in.remaining() >= CHUNK) {
+			// leaves are read in place, possibly by several threads
+			ByteBuffer le = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int off = in.position();
+			int len = in.remaining();
+			while (len >= CHUNK) {
+				int count = Math.min(len / CHUNK, MAX_BATCH);
+				compress(le, off, CHUNK, count);
+				off += count * CHUNK;
+				len -= count * CHUNK;
+			}
+			in.position(off);
+		}
+
+		bufOff = in.remaining();
+		in.get(buffer, 0, bufOff);
+	}
+
+	// the first chunk is complete and more input follows
+	private void startTree() {
+		node.update(TREE_HEADER, 0, TREE_HEADER.length);
+		tree = true;
 	}
 
 	/*
-	 * TODO Possible API change to support partial-byte suffixes.
+	 * Hash count consecutive leaves of leafLen bytes and absorb their
+	 * chaining values in order.
 	 */
-	protected int doFinal(byte[] out, int outOff, int outLen, byte partialByte,
-			int partialBits) {
-		if (partialBits < 0 || partialBits > 7) {
-			throw new IllegalArgumentException(
-					"'partialBits' must be in the range [0,7]");
+	private void compress(byte[] in, int inOff, int leafLen, int count) {
+		if (count == 1) {
+			try {
+				KeccakDigest.hash(lanes, leaves.rounds, leaves.rateBytes, leaves.ds, in, inOff, leafLen, leafOut,
+						0, CV);
+			} finally {
+				Arrays.fill(lanes, 0L);
+			}
+			node.update(leafOut, 0, CV);
+		} else {
+			if (leafOut.length < count * CV) {
+				leafOut = new byte[count * CV];
+			}
+			leaves.hashChunks(in, inOff, count * leafLen, leafLen, leafOut, 0);
+			node.update(leafOut, 0, count * CV);
 		}
+		leafCount += count;
+	}
 
-		int finalInput = (partialByte & ((1 << partialBits) - 1))
-				| (0x0F << partialBits);
-		int finalBits = partialBits + 4;
+	// as above from a little-endian buffer at the absolute index inOff
+	private void compress(ByteBuffer in, int inOff, int leafLen, int count) {
+		if (count == 1) {
+			try {
+				KeccakDigest.hash(lanes, leaves.rounds, leaves.rateBytes, leaves.ds, in, inOff, leafLen, leafOut,
+						0, CV);
+			} finally {
+				Arrays.fill(lanes, 0L);
+			}
+			node.update(leafOut, 0, CV);
+		} else {
+			if (leafOut.length < count * CV) {
+				leafOut = new byte[count * CV];
+			}
+			leaves.hashChunks(in, inOff, count * leafLen, leafLen, leafOut, 0);
+			node.update(leafOut, 0, count * CV);
+		}
+		leafCount += count;
+	}
 
-		if (finalBits >= 8) {
-			oneByte[0] = (byte) finalInput;
-			absorb(oneByte, 0, 8);
-			finalBits -= 8;
-			finalInput >>>= 8;
+	private int wrapUp() {
+		update(C, 0, C.length);
+		byte[] enc = XofUtils.lengthEncode(C.length);
+		update(enc, 0, enc.length);
+
+		firstOutput = false;
+		if (!tree) {
+			return 0x07;
 		}
 
-		if (finalBits > 0) {
-			oneByte[0] = (byte) finalInput;
-			absorb(oneByte, 0, finalBits);
+		if (bufOff != 0) {
+			compress(buffer, 0, bufOff, 1);
+			bufOff = 0;
 		}
+		byte[] n = XofUtils.lengthEncode(leafCount);
+		node.update(n, 0, n.length);
+		node.update(TREE_TRAILER, 0, TREE_TRAILER.length);
+		return 0x06;
+	}
 
-		squeeze(out, outOff, ((long) outLen) * 8);
+	public int doFinal(byte[] out, int outOff) {
+		return doFinal(out, outOff, CV);
+	}
+
+	public int doFinal(byte[] out, int outOff, int outLen) {
+		int rv = doOutput(out, outOff, outLen);
 
 		reset();
 
-		return outLen;
+		return rv;
+	}
+
+	public int doOutput(byte[] out, int outOff, int outLen) {
+		if (firstOutput) {
+			D = wrapUp();
+		}
+
+		return node.doOutput(out, outOff, outLen, D);
+	}
+
+	public void reset() {
+		node.reset();
+		Arrays.fill(buffer, (byte) 0);
+
+		firstLen = 0;
+		bufOff = 0;
+		tree = false;
+		leafCount = 0;
+		firstOutput = true;
 	}
 }
 
@@ -204,10 +2292,9 @@ class SHAKEDigest extends KeccakDigest implements Xof {
  * Following the naming conventions used in the C source code to enable easy
  * review of the implementation.
  */
-class KeccakDigest implements ExtendedDigest {
+class KeccakDigest implements ExtendedDigest, Memoable {
 	
-	private static long[] KeccakRoundConstants = keccakInitializeRoundConstants();
-	private static int[] KeccakRhoOffsets = keccakInitializeRhoOffsets();
+	private static final long[] KeccakRoundConstants = keccakInitializeRoundConstants();
 
 	private static long[] keccakInitializeRoundConstants() {
 		long[] keccakRoundConstants = new long[24];
@@ -240,33 +2327,16 @@ class KeccakDigest implements ExtendedDigest {
 		return result;
 	}
 
-	private static int[] keccakInitializeRhoOffsets() {
-		int[] keccakRhoOffsets = new int[25];
-		int x, y, t, newX, newY;
-
-		keccakRhoOffsets[(((0) % 5) + 5 * ((0) % 5))] = 0;
-		x = 1;
-		y = 0;
-		for (t = 0; t < 24; t++) {
-			keccakRhoOffsets[(((x) % 5) + 5 * ((y) % 5))] = ((t + 1) * (t + 2) / 2) % 64;
-			newX = (0 * x + 1 * y) % 5;
-			newY = (2 * x + 3 * y) % 5;
-			x = newX;
-			y = newY;
-		}
-
-		return keccakRhoOffsets;
-	}
-
-	protected byte[] state = new byte[(1600 / 8)];
+	protected long[] state = new long[(1600 / 64)]; // 25 lanes
 	protected byte[] dataQueue = new byte[(1536 / 8)];
 	protected int rate;
 	protected int bitsInQueue;
 	protected int fixedOutputLength;
 	protected boolean squeezing;
 	protected int bitsAvailableForSqueezing;
-	protected byte[] chunk;
-	protected byte[] oneByte;
+	protected final byte[] oneByte = new byte[1];
+	// rounds of the permutation, 12 for TurboSHAKE
+	protected int rounds = 24;
 
 	private void clearDataQueueSection(int off, int len) {
 		for (int i = off; i != off + len; i++) {
@@ -291,26 +2361,201 @@ class KeccakDigest implements ExtendedDigest {
 		this.fixedOutputLength = source.fixedOutputLength;
 		this.squeezing = source.squeezing;
 		this.bitsAvailableForSqueezing = source.bitsAvailableForSqueezing;
-		this.chunk = cloneBytes(source.chunk);
-		this.oneByte = cloneBytes(source.oneByte);
+		this.rounds = source.rounds;
+	}
+
+	public Memoable copy() {
+		return new KeccakDigest(this);
+	}
+
+	/**
+	 * Restore a state captured with copy(), typically after absorbing a
+	 * common prefix, so that only the rest of a message needs absorbing.
+	 * Nothing is allocated; other must be the same kind of digest with the
+	 * same parameters.
+	 */
+	public void reset(Memoable other) {
+		if (other.getClass() != getClass()) {
+			throw new IllegalArgumentException("attempt to reset from a different digest");
+		}
+		restore((KeccakDigest) other);
+	}
+
+	private static final byte STATE_VERSION = 2;
+
+	/*
+	 * Parameters beyond the algorithm name that the state only makes sense
+	 * with, written to and checked against exported states.
+	 */
+	byte[] stateParameters() {
+		return new byte[0];
+	}
+
+	/**
+	 * The intermediate state in a compact versioned binary form: version,
+	 * algorithm name, parameters (a cSHAKE customization hash or TurboSHAKE
+	 * domain byte), rounds, output length, queue and squeeze positions, the
+	 * 25 lanes and the bytes waiting in the queue, at most 420 bytes. It can
+	 * be imported into a digest with the same parameters on any node to
+	 * carry on absorbing or squeezing. The state is as sensitive as the data
+	 * hashed so far.
+	 */
+	public byte[] exportState() {
+		byte[] name = XofUtils.toBytes(getAlgorithmName());
+		byte[] parameters = stateParameters();
+		int queued = squeezing ? 0 : (bitsInQueue + 7) >>> 3;
+		ByteBuffer b = ByteBuffer.allocate(1 + 1 + name.length + 1 + parameters.length + 1 + 2 + 2 + 1 + 2 + 200
+				+ queued);
+		b.put(STATE_VERSION).put((byte) name.length).put(name);
+		b.put((byte) parameters.length).put(parameters);
+		b.put((byte) rounds).putShort((short) fixedOutputLength).putShort((short) bitsInQueue);
+		b.put((byte) (squeezing ? 1 : 0)).putShort((short) bitsAvailableForSqueezing);
+		for (long lane : state) {
+			b.putLong(lane);
+		}
+		b.put(dataQueue, 0, queued);
+		return b.array();
+	}
+
+	/**
+	 * Continue from a state produced by exportState() on a digest of the same
+	 * algorithm, cSHAKE customization and TurboSHAKE domain byte. Version 1
+	 * states, which did not record those, are accepted only by digests
+	 * without them.
+	 */
+	public void importState(byte[] exported) {
+		ByteBuffer b = ByteBuffer.wrap(exported);
+		byte[] name = XofUtils.toBytes(getAlgorithmName());
+		byte[] parameters = stateParameters();
+		try {
+			byte version = b.get();
+			if ((version != STATE_VERSION && (version != 1 || parameters.length != 0))
+					|| b.get() != name.length) {
+				throw new IllegalArgumentException("unrecognised state");
+			}
+			byte[] stateName = new byte[name.length];
+			b.get(stateName);
+			byte[] stateParameters = new byte[version == 1 ? 0 : b.get() & 0xFF];
+			b.get(stateParameters);
+			if (!Arrays.equals(name, stateName) || b.get() != rounds || b.getShort() != fixedOutputLength) {
+				throw new IllegalArgumentException("state is not for " + getAlgorithmName());
+			}
+			if (!Arrays.equals(parameters, stateParameters)) {
+				throw new IllegalArgumentException("state is for different " + getAlgorithmName() + " parameters");
+			}
+			int bitsInQueue = b.getShort();
+			boolean squeezing = b.get() != 0;
+			int bitsAvailableForSqueezing = b.getShort();
+			int queued = squeezing ? 0 : (bitsInQueue + 7) >>> 3;
+			if (bitsInQueue < 0 || bitsInQueue >= rate || bitsAvailableForSqueezing < 0
+					|| bitsAvailableForSqueezing > rate || b.remaining() != 200 + queued) {
+				throw new IllegalArgumentException("corrupt state");
+			}
+
+			for (int i = 0; i < state.length; i++) {
+				state[i] = b.getLong();
+			}
+			Arrays.fill(dataQueue, (byte) 0);
+			b.get(dataQueue, 0, queued);
+			this.bitsInQueue = bitsInQueue;
+			this.squeezing = squeezing;
+			this.bitsAvailableForSqueezing = bitsAvailableForSqueezing;
+			if (squeezing) {
+				// the current output block is the lanes as they stand
+				KeccakExtract(state, dataQueue, 0, rate / 64);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("truncated state");
+		}
+	}
+
+	/*
+	 * Overwrite this sponge with the state of source, which must have the
+	 * same rate, without allocating: the lanes, the queued bytes and the
+	 * bytes left to squeeze are copied.
+	 */
+	void restore(KeccakDigest source) {
+		if (source.rate != rate || source.rounds != rounds) {
+			throw new IllegalArgumentException("source has different parameters");
+		}
+		System.arraycopy(source.state, 0, state, 0, state.length);
+		System.arraycopy(source.dataQueue, 0, dataQueue, 0, rate / 8);
+		this.bitsInQueue = source.bitsInQueue;
+		this.fixedOutputLength = source.fixedOutputLength;
+		this.squeezing = source.squeezing;
+		this.bitsAvailableForSqueezing = source.bitsAvailableForSqueezing;
 	}
 
-	public String getAlgorithmName() {
-		return "Keccak-" + fixedOutputLength;
+	public String getAlgorithmName() {
+		return "Keccak-" + fixedOutputLength;
+	}
+
+	public int getDigestSize() {
+		return fixedOutputLength / 8;
+	}
+
+	public void update(byte in) {
+		if ((bitsInQueue & 7) != 0) {
+			throw new IllegalStateException(
+					"attempt to absorb with odd length queue");
+		}
+		if (squeezing) {
+			throw new IllegalStateException("attempt to absorb while squeezing");
+		}
+
+		dataQueue[bitsInQueue >>> 3] = in;
+		bitsInQueue += 8;
+		if (bitsInQueue == rate) {
+			absorbQueue();
+		}
 	}
 
-	public int getDigestSize() {
-		return fixedOutputLength / 8;
+	public void update(byte[] in, int inOff, int len) {
+		absorbBytes(in, inOff, len);
 	}
 
-	public void update(byte in) {
-		oneByte[0] = in;
+	/**
+	 * Absorb the remaining bytes of in, advancing its position to the limit.
+	 * Whole blocks are read from the buffer as little-endian longs, heap or
+	 * direct, without copying.
+	 */
+	public void update(ByteBuffer in) {
+		if ((bitsInQueue & 7) != 0) {
+			throw new IllegalStateException(
+					"attempt to absorb with odd length queue");
+		}
+		if (squeezing) {
+			throw new IllegalStateException("attempt to absorb while squeezing");
+		}
 
-		absorb(oneByte, 0, 8L);
-	}
+		int rateBytes = rate >>> 3;
+		int queued = bitsInQueue >>> 3;
 
-	public void update(byte[] in, int inOff, int len) {
-		absorb(in, inOff, len * 8L);
+		if (queued != 0) {
+			int n = Math.min(in.remaining(), rateBytes - queued);
+			in.get(dataQueue, queued, n);
+			bitsInQueue += n << 3;
+			if (bitsInQueue != rate) {
+				return;
+			}
+			absorbQueue();
+		}
+
+		if (in.remaining() >= rateBytes) {
+			// read through a little-endian view; the caller's buffer may be shared
+			ByteBuffer le = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int off = in.position();
+			int end = in.limit() - rateBytes;
+			while (off <= end) {
+				KeccakAbsorb(state, rounds, le, off, rateBytes);
+				off += rateBytes;
+			}
+			in.position(off);
+		}
+
+		int len = in.remaining();
+		in.get(dataQueue, 0, len);
+		bitsInQueue = len << 3;
 	}
 
 	public int doFinal(byte[] out, int outOff) {
@@ -389,22 +2634,63 @@ class KeccakDigest implements ExtendedDigest {
 		this.rate = rate;
 		// this is never read, need to check to see why we want to save it
 		// this.capacity = capacity;
-		Arrays.fill(this.state, (byte) 0);
-		Arrays.fill(this.dataQueue, (byte) 0);
+		Arrays.fill(this.state, 0L);
+		Arrays.fill(this.dataQueue, 0, rate / 8, (byte) 0);
 		this.bitsInQueue = 0;
 		this.squeezing = false;
 		this.bitsAvailableForSqueezing = 0;
 		this.fixedOutputLength = capacity / 2;
-		this.chunk = new byte[rate / 8];
-		this.oneByte = new byte[1];
 	}
 
 	private void absorbQueue() {
-		KeccakAbsorb(state, dataQueue, rate / 8);
+		KeccakAbsorb(state, rounds, dataQueue, 0, rate / 8);
 
 		bitsInQueue = 0;
 	}
 
+	/*
+	 * Byte oriented absorb used by update(). Whole rate-sized blocks are
+	 * XORed straight from data into the lanes; only a leading partial block
+	 * (completing what is already queued) and the trailing remainder go
+	 * through dataQueue.
+	 */
+	protected void absorbBytes(byte[] data, int off, int len) {
+		if ((bitsInQueue & 7) != 0) {
+			throw new IllegalStateException(
+					"attempt to absorb with odd length queue");
+		}
+		if (squeezing) {
+			throw new IllegalStateException("attempt to absorb while squeezing");
+		}
+
+		int rateBytes = rate >>> 3;
+		int queued = bitsInQueue >>> 3;
+
+		if (queued != 0) {
+			int n = Math.min(len, rateBytes - queued);
+			System.arraycopy(data, off, dataQueue, queued, n);
+			bitsInQueue += n << 3;
+			off += n;
+			len -= n;
+			if (bitsInQueue != rate) {
+				return;
+			}
+			absorbQueue();
+		}
+
+		while (len >= rateBytes) {
+			KeccakAbsorb(state, rounds, data, off, rateBytes);
+			off += rateBytes;
+			len -= rateBytes;
+		}
+
+		System.arraycopy(data, off, dataQueue, 0, len);
+		bitsInQueue = len << 3;
+	}
+
+	/*
+	 * Bit oriented absorb, only needed for the partial byte suffixes of doFinal.
+	 */
 	protected void absorb(byte[] data, int off, long databitlen) {
 		long i, j, wholeBlocks;
 
@@ -423,14 +2709,7 @@ class KeccakDigest implements ExtendedDigest {
 				wholeBlocks = (databitlen - i) / rate;
 
 				for (j = 0; j < wholeBlocks; j++) {
-					System.arraycopy(data,
-							(int) (off + (i / 8) + (j * chunk.length)), chunk,
-							0, chunk.length);
-
-					// displayIntermediateValues.displayBytes(1,
-					// "Block to be absorbed", curData, rate / 8);
-
-					KeccakAbsorb(state, chunk, chunk.length);
+					KeccakAbsorb(state, rounds, data, (int) (off + (i / 8) + (j * (rate / 8))), rate / 8);
 				}
 
 				i += wholeBlocks * rate;
@@ -476,15 +2755,8 @@ class KeccakDigest implements ExtendedDigest {
 		// displayIntermediateValues.displayText(1,
 		// "--- Switching to squeezing phase ---");
 
-		if (rate == 1024) {
-			KeccakExtract1024bits(state, dataQueue);
-			bitsAvailableForSqueezing = 1024;
-		} else
-
-		{
-			KeccakExtract(state, dataQueue, rate / 64);
-			bitsAvailableForSqueezing = rate;
-		}
+		KeccakExtract(state, dataQueue, 0, rate / 64);
+		bitsAvailableForSqueezing = rate;
 
 		// displayIntermediateValues.displayBytes(1,
 		// "Block available for squeezing", dataQueue, bitsAvailableForSqueezing
@@ -494,9 +2766,6 @@ class KeccakDigest implements ExtendedDigest {
 	}
 
 	protected void squeeze(byte[] output, int offset, long outputLength) {
-		long i;
-		int partialBlock;
-
 		if (!squeezing) {
 			padAndSwitchToSqueezingPhase();
 		}
@@ -504,186 +2773,861 @@ class KeccakDigest implements ExtendedDigest {
 			throw new IllegalStateException("outputLength not a multiple of 8");
 		}
 
-		i = 0;
-		while (i < outputLength) {
-			if (bitsAvailableForSqueezing == 0) {
-				keccakPermutation(state);
-
-				if (rate == 1024) {
-					KeccakExtract1024bits(state, dataQueue);
-					bitsAvailableForSqueezing = 1024;
-				} else
-
-				{
-					KeccakExtract(state, dataQueue, rate / 64);
-					bitsAvailableForSqueezing = rate;
-				}
+		int len = (int) (outputLength >>> 3);
+		int rateBytes = rate >>> 3;
+
+		// what is left of the current block
+		int avail = bitsAvailableForSqueezing >>> 3;
+		int n = Math.min(len, avail);
+		System.arraycopy(dataQueue, rateBytes - avail, output, offset, n);
+		bitsAvailableForSqueezing -= n << 3;
+		offset += n;
+		len -= n;
+
+		// whole blocks straight from the lanes
+		while (len >= rateBytes) {
+			keccakPermutationOnWords(state, rounds);
+			KeccakExtract(state, output, offset, rate / 64);
+			offset += rateBytes;
+			len -= rateBytes;
+		}
 
+		if (len > 0) {
+			keccakPermutationOnWords(state, rounds);
+			KeccakExtract(state, dataQueue, 0, rate / 64);
+			System.arraycopy(dataQueue, 0, output, offset, len);
+			bitsAvailableForSqueezing = rate - (len << 3);
+		}
+	}
+
+	/*
+	 * Squeeze len bytes into out at its position, whole blocks written from
+	 * the lanes as little-endian longs. Only for byte aligned output after
+	 * the padding, as done by the first doOutput of an XOF.
+	 */
+	protected void squeeze(ByteBuffer out, int len) {
+		if (!squeezing) {
+			padAndSwitchToSqueezingPhase();
+		}
+		if (out.remaining() < len) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		int rateBytes = rate >>> 3;
+
+		int avail = bitsAvailableForSqueezing >>> 3;
+		int n = Math.min(len, avail);
+		out.put(dataQueue, rateBytes - avail, n);
+		bitsAvailableForSqueezing -= n << 3;
+		len -= n;
+
+		if (len >= rateBytes) {
+			// write through a little-endian view; the caller's buffer may be shared
+			ByteBuffer le = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int laneCount = rate / 64;
+			int pos = out.position();
+			while (len >= rateBytes) {
+				keccakPermutationOnWords(state, rounds);
+				for (int i = 0; i < laneCount; i++) {
+					le.putLong(pos + i * 8, state[i]);
+				}
+				pos += rateBytes;
+				len -= rateBytes;
 			}
-			partialBlock = bitsAvailableForSqueezing;
-			if ((long) partialBlock > outputLength - i) {
-				partialBlock = (int) (outputLength - i);
-			}
+			out.position(pos);
+		}
+
+		if (len > 0) {
+			keccakPermutationOnWords(state, rounds);
+			KeccakExtract(state, dataQueue, 0, rate / 64);
+			out.put(dataQueue, 0, len);
+			bitsAvailableForSqueezing = rate - (len << 3);
+		}
+	}
+
+	/*
+	 * Keccak-p[1600, rounds] with the 25 lanes held in locals. theta, rho and
+	 * pi, chi and iota are written out for each lane so that all rotation
+	 * amounts and indices are constants; lane aXY is A[x + 5 * y] with
+	 * XY = 5 * y + x. As in the spec the last rounds are the ones applied, so
+	 * 24 is Keccak-f[1600] and 12 is the permutation of TurboSHAKE and K12.
+	 */
+	static void keccakPermutationOnWords(long[] A, int rounds) {
+		final long[] RC = KeccakRoundConstants;
+
+		long a00 = A[0];
+		long a01 = A[1];
+		long a02 = A[2];
+		long a03 = A[3];
+		long a04 = A[4];
+		long a05 = A[5];
+		long a06 = A[6];
+		long a07 = A[7];
+		long a08 = A[8];
+		long a09 = A[9];
+		long a10 = A[10];
+		long a11 = A[11];
+		long a12 = A[12];
+		long a13 = A[13];
+		long a14 = A[14];
+		long a15 = A[15];
+		long a16 = A[16];
+		long a17 = A[17];
+		long a18 = A[18];
+		long a19 = A[19];
+		long a20 = A[20];
+		long a21 = A[21];
+		long a22 = A[22];
+		long a23 = A[23];
+		long a24 = A[24];
+
+		for (int i = 24 - rounds; i < 24; i++) {
+			// theta
+			long c0 = a00 ^ a05 ^ a10 ^ a15 ^ a20;
+			long c1 = a01 ^ a06 ^ a11 ^ a16 ^ a21;
+			long c2 = a02 ^ a07 ^ a12 ^ a17 ^ a22;
+			long c3 = a03 ^ a08 ^ a13 ^ a18 ^ a23;
+			long c4 = a04 ^ a09 ^ a14 ^ a19 ^ a24;
+
+			long d0 = (c1 << 1 | c1 >>> -1) ^ c4;
+			long d1 = (c2 << 1 | c2 >>> -1) ^ c0;
+			long d2 = (c3 << 1 | c3 >>> -1) ^ c1;
+			long d3 = (c4 << 1 | c4 >>> -1) ^ c2;
+			long d4 = (c0 << 1 | c0 >>> -1) ^ c3;
+
+			a00 ^= d0; a05 ^= d0; a10 ^= d0; a15 ^= d0; a20 ^= d0;
+			a01 ^= d1; a06 ^= d1; a11 ^= d1; a16 ^= d1; a21 ^= d1;
+			a02 ^= d2; a07 ^= d2; a12 ^= d2; a17 ^= d2; a22 ^= d2;
+			a03 ^= d3; a08 ^= d3; a13 ^= d3; a18 ^= d3; a23 ^= d3;
+			a04 ^= d4; a09 ^= d4; a14 ^= d4; a19 ^= d4; a24 ^= d4;
+
+			// rho and pi
+			long t = a01 << 1 | a01 >>> 63;
+			a01 = a06 << 44 | a06 >>> 20;
+			a06 = a09 << 20 | a09 >>> 44;
+			a09 = a22 << 61 | a22 >>> 3;
+			a22 = a14 << 39 | a14 >>> 25;
+			a14 = a20 << 18 | a20 >>> 46;
+			a20 = a02 << 62 | a02 >>> 2;
+			a02 = a12 << 43 | a12 >>> 21;
+			a12 = a13 << 25 | a13 >>> 39;
+			a13 = a19 << 8 | a19 >>> 56;
+			a19 = a23 << 56 | a23 >>> 8;
+			a23 = a15 << 41 | a15 >>> 23;
+			a15 = a04 << 27 | a04 >>> 37;
+			a04 = a24 << 14 | a24 >>> 50;
+			a24 = a21 << 2 | a21 >>> 62;
+			a21 = a08 << 55 | a08 >>> 9;
+			a08 = a16 << 45 | a16 >>> 19;
+			a16 = a05 << 36 | a05 >>> 28;
+			a05 = a03 << 28 | a03 >>> 36;
+			a03 = a18 << 21 | a18 >>> 43;
+			a18 = a17 << 15 | a17 >>> 49;
+			a17 = a11 << 10 | a11 >>> 54;
+			a11 = a07 << 6 | a07 >>> 58;
+			a07 = a10 << 3 | a10 >>> 61;
+			a10 = t;
+
+			// chi
+			c0 = a00 ^ (~a01 & a02);
+			c1 = a01 ^ (~a02 & a03);
+			a02 ^= ~a03 & a04;
+			a03 ^= ~a04 & a00;
+			a04 ^= ~a00 & a01;
+			a00 = c0;
+			a01 = c1;
+
+			c0 = a05 ^ (~a06 & a07);
+			c1 = a06 ^ (~a07 & a08);
+			a07 ^= ~a08 & a09;
+			a08 ^= ~a09 & a05;
+			a09 ^= ~a05 & a06;
+			a05 = c0;
+			a06 = c1;
+
+			c0 = a10 ^ (~a11 & a12);
+			c1 = a11 ^ (~a12 & a13);
+			a12 ^= ~a13 & a14;
+			a13 ^= ~a14 & a10;
+			a14 ^= ~a10 & a11;
+			a10 = c0;
+			a11 = c1;
+
+			c0 = a15 ^ (~a16 & a17);
+			c1 = a16 ^ (~a17 & a18);
+			a17 ^= ~a18 & a19;
+			a18 ^= ~a19 & a15;
+			a19 ^= ~a15 & a16;
+			a15 = c0;
+			a16 = c1;
+
+			c0 = a20 ^ (~a21 & a22);
+			c1 = a21 ^ (~a22 & a23);
+			a22 ^= ~a23 & a24;
+			a23 ^= ~a24 & a20;
+			a24 ^= ~a20 & a21;
+			a20 = c0;
+			a21 = c1;
+
+			// iota
+			a00 ^= RC[i];
+		}
+
+		A[0] = a00;
+		A[1] = a01;
+		A[2] = a02;
+		A[3] = a03;
+		A[4] = a04;
+		A[5] = a05;
+		A[6] = a06;
+		A[7] = a07;
+		A[8] = a08;
+		A[9] = a09;
+		A[10] = a10;
+		A[11] = a11;
+		A[12] = a12;
+		A[13] = a13;
+		A[14] = a14;
+		A[15] = a15;
+		A[16] = a16;
+		A[17] = a17;
+		A[18] = a18;
+		A[19] = a19;
+		A[20] = a20;
+		A[21] = a21;
+		A[22] = a22;
+		A[23] = a23;
+		A[24] = a24;
+	}
+
+	/*
+	 * Complete sponge computation directly on the lanes A, which must be zero,
+	 * with a permutation of the given number of rounds: absorb len bytes of in at off with a rateBytes rate, pad with the domain
+	 * separation bits ds (including their leading 1) and the final 1 bit, and
+	 * squeeze outLen bytes into out at outOff. Nothing is allocated.
+	 */
+	static void hash(long[] A, int rounds, int rateBytes, int ds, byte[] in, int off, int len, byte[] out,
+			int outOff, int outLen) {
+		while (len >= rateBytes) {
+			KeccakAbsorb(A, rounds, in, off, rateBytes);
+			off += rateBytes;
+			len -= rateBytes;
+		}
+
+		int lanes = len >>> 3;
+		for (int i = 0; i < lanes; i++) {
+			A[i] ^= littleEndianToLong(in, off);
+			off += 8;
+		}
+		for (int i = lanes << 3; i < len; i++) {
+			A[i >>> 3] ^= (in[off++] & 0xffL) << ((i & 7) << 3);
+		}
+		padAndSqueeze(A, rounds, rateBytes, ds, len, out, outOff, outLen);
+	}
+
+	/*
+	 * As above, reading from a little-endian ordered buffer at the absolute
+	 * index off; the buffer's position is not used or changed, so several
+	 * threads may hash parts of one buffer.
+	 */
+	static void hash(long[] A, int rounds, int rateBytes, int ds, ByteBuffer in, int off, int len, byte[] out,
+			int outOff, int outLen) {
+		while (len >= rateBytes) {
+			KeccakAbsorb(A, rounds, in, off, rateBytes);
+			off += rateBytes;
+			len -= rateBytes;
+		}
 
-			System.arraycopy(dataQueue, (rate - bitsAvailableForSqueezing) / 8,
-					output, offset + (int) (i / 8), partialBlock / 8);
-			bitsAvailableForSqueezing -= partialBlock;
-			i += partialBlock;
+		int lanes = len >>> 3;
+		for (int i = 0; i < lanes; i++) {
+			A[i] ^= in.getLong(off);
+			off += 8;
 		}
+		for (int i = lanes << 3; i < len; i++) {
+			A[i >>> 3] ^= (in.get(off++) & 0xffL) << ((i & 7) << 3);
+		}
+		padAndSqueeze(A, rounds, rateBytes, ds, len, out, outOff, outLen);
 	}
 
-	private void fromBytesToWords(long[] stateAsWords, byte[] state) {
-		for (int i = 0; i < (1600 / 64); i++) {
-			stateAsWords[i] = 0;
-			int index = i * (64 / 8);
-			for (int j = 0; j < (64 / 8); j++) {
-				stateAsWords[i] |= ((long) state[index + j] & 0xff) << ((8 * j));
+	/*
+	 * As hash() over one prefix byte followed by len bytes of in at off,
+	 * without copying them together. Stream position p > 0 is
+	 * in[off + p - 1], so apart from the very first lane each lane is one
+	 * unaligned read.
+	 */
+	static void hashPrefixed(long[] A, int rounds, int rateBytes, int ds, byte prefix, byte[] in, int off,
+			int len, byte[] out, int outOff, int outLen) {
+		int total = len + 1;
+		int base = off - 1;
+		int laneCount = rateBytes >>> 3;
+		int p = 0;
+		while (total - p >= rateBytes) {
+			for (int i = 0; i < laneCount; i++) {
+				A[i] ^= p == 0 ? firstLane(prefix, in, off) : littleEndianToLong(in, base + p);
+				p += 8;
 			}
+			keccakPermutationOnWords(A, rounds);
+		}
+
+		int r = total - p;
+		int lanes = r >>> 3;
+		for (int i = 0; i < lanes; i++) {
+			A[i] ^= p == 0 ? firstLane(prefix, in, off) : littleEndianToLong(in, base + p);
+			p += 8;
+		}
+		for (int i = lanes << 3; i < r; i++, p++) {
+			long b = p == 0 ? prefix & 0xffL : in[base + p] & 0xffL;
+			A[i >>> 3] ^= b << ((i & 7) << 3);
 		}
+		padAndSqueeze(A, rounds, rateBytes, ds, r, out, outOff, outLen);
 	}
 
-	private void fromWordsToBytes(byte[] state, long[] stateAsWords) {
-		for (int i = 0; i < (1600 / 64); i++) {
-			int index = i * (64 / 8);
-			for (int j = 0; j < (64 / 8); j++) {
-				state[index + j] = (byte) ((stateAsWords[i] >>> ((8 * j))) & 0xFF);
+	// the prefix byte and the first 7 bytes of in
+	private static long firstLane(byte prefix, byte[] in, int off) {
+		long lane = prefix & 0xffL;
+		for (int j = 1; j < 8; j++) {
+			lane |= (in[off + j - 1] & 0xffL) << (8 * j);
+		}
+		return lane;
+	}
+
+	/*
+	 * Pad the last block, of which len bytes were absorbed, and squeeze.
+	 */
+	private static void padAndSqueeze(long[] A, int rounds, int rateBytes, int ds, int len, byte[] out,
+			int outOff, int outLen) {
+		A[len >>> 3] ^= (ds & 0xffL) << ((len & 7) << 3);
+		A[(rateBytes - 1) >>> 3] ^= 0x80L << 56;
+		keccakPermutationOnWords(A, rounds);
+
+		while (true) {
+			int n = Math.min(outLen, rateBytes);
+			for (int i = 0; i < n; i++) {
+				out[outOff + i] = (byte) (A[i >>> 3] >>> ((i & 7) << 3));
+			}
+			outLen -= n;
+			if (outLen == 0) {
+				return;
 			}
+			outOff += n;
+			keccakPermutationOnWords(A, rounds);
+		}
+	}
+
+	/*
+	 * XOR dataInBytes (a multiple of 8) of data at off into the leading lanes
+	 * as little-endian words, then permute.
+	 */
+	private static void KeccakAbsorb(long[] A, int rounds, byte[] data, int off, int dataInBytes) {
+		int laneCount = dataInBytes >>> 3;
+		for (int i = 0; i < laneCount; i++) {
+			A[i] ^= littleEndianToLong(data, off);
+			off += 8;
+		}
+
+		keccakPermutationOnWords(A, rounds);
+	}
+
+	/*
+	 * As above, from a little-endian ordered buffer at the absolute index off.
+	 */
+	private static void KeccakAbsorb(long[] A, int rounds, ByteBuffer data, int off, int dataInBytes) {
+		int laneCount = dataInBytes >>> 3;
+		for (int i = 0; i < laneCount; i++) {
+			A[i] ^= data.getLong(off);
+			off += 8;
+		}
+
+		keccakPermutationOnWords(A, rounds);
+	}
+
+	/*
+	 * Write the leading laneCount lanes of the state into data at off as bytes.
+	 */
+	private void KeccakExtract(long[] A, byte[] data, int off, int laneCount) {
+		for (int i = 0; i < laneCount; i++) {
+			longToLittleEndian(A[i], data, off + i * 8);
 		}
 	}
 
-	private void keccakPermutation(byte[] state) {
-		long[] longState = new long[state.length / 8];
+	// from Pack
+	static long littleEndianToLong(byte[] bs, int off) {
+		int lo = littleEndianToInt(bs, off);
+		int hi = littleEndianToInt(bs, off + 4);
+		return ((hi & 0xffffffffL) << 32) | (lo & 0xffffffffL);
+	}
+
+	private static int littleEndianToInt(byte[] bs, int off) {
+		int n = bs[off] & 0xff;
+		n |= (bs[++off] & 0xff) << 8;
+		n |= (bs[++off] & 0xff) << 16;
+		n |= bs[++off] << 24;
+		return n;
+	}
+
+	static void longToLittleEndian(long n, byte[] bs, int off) {
+		intToLittleEndian((int) (n & 0xffffffffL), bs, off);
+		intToLittleEndian((int) (n >>> 32), bs, off + 4);
+	}
+
+	private static void intToLittleEndian(int n, byte[] bs, int off) {
+		bs[off] = (byte) (n);
+		bs[++off] = (byte) (n >>> 8);
+		bs[++off] = (byte) (n >>> 16);
+		bs[++off] = (byte) (n >>> 24);
+	}
+
+}
+
+/**
+ * Continuous output of an XOF, readable into arrays and heap or direct
+ * buffers or as an InputStream that never ends. The XOF is switched to
+ * output (padded) on construction, so nothing more can be absorbed; for the
+ * SP 800-185 functions this selects their XOF variant. Keccak based XOFs
+ * are squeezed straight from the lanes, whole blocks at a time.
+ */
+class XofReader extends InputStream {
+	private final Xof xof;
+	// the XOF itself when it is a plain sponge, for the direct buffer path
+	private final KeccakDigest sponge;
+	private final byte[] oneByte = new byte[1];
+	private byte[] scratch;
+
+	XofReader(Xof xof) {
+		this.xof = xof;
+		this.sponge = xof instanceof KeccakDigest ? (KeccakDigest) xof : null;
+		xof.doOutput(oneByte, 0, 0);
+	}
+
+	public int read() {
+		xof.doOutput(oneByte, 0, 1);
+		return oneByte[0] & 0xff;
+	}
 
-		fromBytesToWords(longState, state);
+	/**
+	 * Fill len bytes of b from off.
+	 * 
+	 * @return len
+	 */
+	public int read(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		xof.doOutput(b, off, len);
+		return len;
+	}
 
-		keccakPermutationOnWords(longState);
+	/**
+	 * Fill the remaining bytes of dst, leaving its position at the limit.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public int read(ByteBuffer dst) {
+		int len = dst.remaining();
+		if (sponge != null) {
+			sponge.squeeze(dst, len);
+		} else if (dst.hasArray()) {
+			xof.doOutput(dst.array(), dst.arrayOffset() + dst.position(), len);
+			dst.position(dst.limit());
+		} else {
+			if (scratch == null) {
+				scratch = new byte[4096];
+			}
+			while (dst.hasRemaining()) {
+				int n = Math.min(dst.remaining(), scratch.length);
+				xof.doOutput(scratch, 0, n);
+				dst.put(scratch, 0, n);
+			}
+		}
+		return len;
+	}
 
-		fromWordsToBytes(state, longState);
+	/**
+	 * Discard the next n bytes of output.
+	 */
+	public long skip(long n) {
+		if (scratch == null) {
+			scratch = new byte[4096];
+		}
+		long left = n;
+		while (left > 0) {
+			int k = (int) Math.min(left, scratch.length);
+			xof.doOutput(scratch, 0, k);
+			left -= k;
+		}
+		return Math.max(n, 0);
 	}
+}
 
-	private void keccakPermutationAfterXor(byte[] state, byte[] data, int dataLengthInBytes) {
-		int i;
+/**
+ * Keccak duplex: absorb and squeeze calls interleave freely on one sponge,
+ * for a deterministic generator (seed, then nextBytes/nextLong) or a KDF
+ * (absorb key material, then derive per context). Data goes straight in and
+ * out of the 25 lanes with no digest, doFinal or reset in between.
+ * <p>
+ * Each switch between absorbing and squeezing closes the phase with a frame
+ * byte and the pad10*1 end bit and permutes, so phases cannot run into each
+ * other, while calls within a phase stream: absorb(a) then absorb(b) is
+ * absorb(a || b), and two squeezes give the bytes of one longer squeeze.
+ * The first squeeze after absorbing M from a new duplex is Keccak[c](M), the
+ * original Keccak padding. Not thread safe.
+ */
+class KeccakDuplex {
+	// frame bytes closing a phase
+	private static final int ABSORBED = 0x01;
+	private static final int SQUEEZED = 0x02;
+	private static final int DERIVE = 0x03;
+	private static final int RATCHET = 0x04;
+
+	private final long[] A = new long[25];
+	private final long[] scratch = new long[25];
+	private final byte[] buf = new byte[9];
+	private final int rate;
+	private final int rounds;
+	private int pos;
+	private boolean absorbing = true;
 
-		for (i = 0; i < dataLengthInBytes; i++) {
-			state[i] ^= data[i];
+	/**
+	 * @param bitLength security level, 128 or 256; the capacity is twice that
+	 * @param rounds 24, or 12 for the Keccak-p[1600,12] of TurboSHAKE
+	 */
+	KeccakDuplex(int bitLength, int rounds) {
+		if (bitLength != 128 && bitLength != 256) {
+			throw new IllegalArgumentException("'bitLength' " + bitLength + " not supported for the Keccak duplex");
+		}
+		if (rounds != 12 && rounds != 24) {
+			throw new IllegalArgumentException("'rounds' must be 12 or 24");
 		}
+		this.rate = 200 - bitLength / 4;
+		this.rounds = rounds;
+	}
+
+	public void absorb(byte[] in) {
+		absorb(in, 0, in.length);
+	}
 
-		keccakPermutation(state);
+	public void absorb(byte[] in, int off, int len) {
+		if (!absorbing) {
+			pos = close(A, pos, SQUEEZED);
+			absorbing = true;
+		}
+		pos = xorIn(A, pos, in, off, len);
 	}
 
-	private void keccakPermutationOnWords(long[] state) {
-		int i;
+	public void nextBytes(byte[] out) {
+		squeeze(out, 0, out.length);
+	}
 
-		// displayIntermediateValues.displayStateAs64bitWords(3,
-		// "Same, with lanes as 64-bit words", state);
+	public void squeeze(byte[] out, int off, int len) {
+		startSqueezing();
+		pos = extract(A, pos, out, off, len);
+	}
 
-		for (i = 0; i < 24; i++) {
-			// displayIntermediateValues.displayRoundNumber(3, i);
+	/**
+	 * The next 8 output bytes as a little-endian long.
+	 */
+	public long nextLong() {
+		startSqueezing();
+		if ((pos & 7) != 0) {
+			pos = extract(A, pos, buf, 0, 8);
+			return KeccakDigest.littleEndianToLong(buf, 0);
+		}
+		long v = A[pos >>> 3];
+		pos += 8;
+		if (pos == rate) {
+			KeccakDigest.keccakPermutationOnWords(A, rounds);
+			pos = 0;
+		}
+		return v;
+	}
 
-			theta(state);
-			// displayIntermediateValues.displayStateAs64bitWords(3,
-			// "After theta", state);
+	/**
+	 * Forget: close the current phase, then zero the rate part of the state.
+	 * The old state cannot be recomputed from the new one, so output before
+	 * the ratchet stays safe if the state is exposed later.
+	 */
+	public void ratchet() {
+		close(A, pos, RATCHET);
+		Arrays.fill(A, 0, rate >>> 3, 0L);
+		pos = 0;
+		absorbing = true;
+	}
 
-			rho(state);
-			// displayIntermediateValues.displayStateAs64bitWords(3,
-			// "After rho", state);
+	/**
+	 * length bytes of key material for context, from what has been absorbed
+	 * and squeezed so far. The duplex itself does not move on, so the same
+	 * context gives the same key until more input or output, and different
+	 * contexts or lengths give unrelated keys.
+	 */
+	public byte[] derive(byte[] context, int length) {
+		byte[] out = new byte[length];
+		derive(context, out, 0, length);
+		return out;
+	}
 
-			pi(state);
-			// displayIntermediateValues.displayStateAs64bitWords(3, "After pi",
-			// state);
+	public void derive(byte[] context, byte[] out, int off, int len) {
+		System.arraycopy(A, 0, scratch, 0, 25);
+		try {
+			// encode_string(context) || left_encode(8 * len)
+			int p = close(scratch, pos, absorbing ? ABSORBED : SQUEEZED);
+			p = xorIn(scratch, p, buf, 0, XofUtils.leftEncode(context.length * 8L, buf));
+			p = xorIn(scratch, p, context, 0, context.length);
+			p = xorIn(scratch, p, buf, 0, XofUtils.leftEncode(len * 8L, buf));
+			p = close(scratch, p, DERIVE);
+			extract(scratch, p, out, off, len);
+		} finally {
+			Arrays.fill(scratch, 0L);
+		}
+	}
 
-			chi(state);
-			// displayIntermediateValues.displayStateAs64bitWords(3,
-			// "After chi", state);
+	/**
+	 * Zero the state, leaving a new duplex.
+	 */
+	public void clear() {
+		Arrays.fill(A, 0L);
+		Arrays.fill(buf, (byte) 0);
+		pos = 0;
+		absorbing = true;
+	}
 
-			iota(state, i);
-			// displayIntermediateValues.displayStateAs64bitWords(3,
-			// "After iota", state);
+	private void startSqueezing() {
+		if (absorbing) {
+			pos = close(A, pos, ABSORBED);
+			absorbing = false;
 		}
 	}
 
-	long[] C = new long[5];
+	private int close(long[] S, int p, int frame) {
+		S[p >>> 3] ^= (long) frame << ((p & 7) << 3);
+		S[(rate >>> 3) - 1] ^= 0x80L << 56;
+		KeccakDigest.keccakPermutationOnWords(S, rounds);
+		return 0;
+	}
 
-	private void theta(long[] A) {
-		for (int x = 0; x < 5; x++) {
-			C[x] = 0;
-			for (int y = 0; y < 5; y++) {
-				C[x] ^= A[x + 5 * y];
+	private int xorIn(long[] S, int p, byte[] in, int off, int len) {
+		while (len > 0) {
+			if ((p & 7) == 0 && len >= 8) {
+				S[p >>> 3] ^= KeccakDigest.littleEndianToLong(in, off);
+				p += 8;
+				off += 8;
+				len -= 8;
+			} else {
+				S[p >>> 3] ^= (in[off++] & 0xffL) << ((p & 7) << 3);
+				p++;
+				len--;
 			}
-		}
-		for (int x = 0; x < 5; x++) {
-			long dX = ((((C[(x + 1) % 5]) << 1) ^ ((C[(x + 1) % 5]) >>> (64 - 1))))
-					^ C[(x + 4) % 5];
-			for (int y = 0; y < 5; y++) {
-				A[x + 5 * y] ^= dX;
+			if (p == rate) {
+				KeccakDigest.keccakPermutationOnWords(S, rounds);
+				p = 0;
 			}
 		}
+		return p;
 	}
 
-	private void rho(long[] A) {
-		for (int x = 0; x < 5; x++) {
-			for (int y = 0; y < 5; y++) {
-				int index = x + 5 * y;
-				A[index] = ((KeccakRhoOffsets[index] != 0) ? (((A[index]) << KeccakRhoOffsets[index]) ^ ((A[index]) >>> (64 - KeccakRhoOffsets[index])))
-						: A[index]);
+	private int extract(long[] S, int p, byte[] out, int off, int len) {
+		while (len > 0) {
+			if ((p & 7) == 0 && len >= 8) {
+				KeccakDigest.longToLittleEndian(S[p >>> 3], out, off);
+				p += 8;
+				off += 8;
+				len -= 8;
+			} else {
+				out[off++] = (byte) (S[p >>> 3] >>> ((p & 7) << 3));
+				p++;
+				len--;
+			}
+			if (p == rate) {
+				KeccakDigest.keccakPermutationOnWords(S, rounds);
+				p = 0;
 			}
 		}
+		return p;
 	}
+}
 
-	long[] tempA = new long[25];
+/**
+ * SecureRandomSpi over a KeccakDuplex. Seeds are absorbed, so setSeed adds
+ * to the state rather than replacing it. Only a seed given to the
+ * constructor makes the output deterministic; otherwise it seeds itself from
+ * the platform SecureRandom before the first output, whatever was passed to
+ * setSeed.
+ */
+class DuplexSecureRandomSpi extends SecureRandomSpi {
+	private static final long serialVersionUID = 1L;
 
-	private void pi(long[] A) {
-		System.arraycopy(A, 0, tempA, 0, tempA.length);
+	private final KeccakDuplex duplex;
+	private final int seedLength;
+	private boolean seeded;
 
-		for (int x = 0; x < 5; x++) {
-			for (int y = 0; y < 5; y++) {
-				A[y + 5 * ((2 * x + 3 * y) % 5)] = tempA[x + 5 * y];
-			}
+	/**
+	 * @param seed the only seed of a deterministic generator, or null to
+	 *            seed from the platform
+	 */
+	DuplexSecureRandomSpi(int bitLength, byte[] seed) {
+		this.duplex = new KeccakDuplex(bitLength, 24);
+		this.seedLength = bitLength / 4;
+		if (seed != null) {
+			duplex.absorb(seed, 0, seed.length);
+			seeded = true;
 		}
 	}
 
-	long[] chiC = new long[5];
+	protected void engineSetSeed(byte[] seed) {
+		duplex.absorb(seed, 0, seed.length);
+	}
 
-	private void chi(long[] A) {
-		for (int y = 0; y < 5; y++) {
-			for (int x = 0; x < 5; x++) {
-				chiC[x] = A[x + 5 * y]
-						^ ((~A[(((x + 1) % 5) + 5 * y)]) & A[(((x + 2) % 5) + 5 * y)]);
-			}
-			for (int x = 0; x < 5; x++) {
-				A[x + 5 * y] = chiC[x];
-			}
+	protected void engineNextBytes(byte[] bytes) {
+		if (!seeded) {
+			engineSetSeed(engineGenerateSeed(seedLength));
+			seeded = true;
 		}
+		duplex.squeeze(bytes, 0, bytes.length);
+	}
+
+	protected byte[] engineGenerateSeed(int numBytes) {
+		return SeedSource.PLATFORM.generateSeed(numBytes);
+	}
+
+	// the platform's default SecureRandom, created on first use and shared
+	private static final class SeedSource {
+		static final SecureRandom PLATFORM = new SecureRandom();
+	}
+}
+
+/**
+ * A SecureRandom on DuplexSecureRandomSpi; the constructor taking an SPI is
+ * protected.
+ */
+class DuplexSecureRandom extends SecureRandom {
+	private static final long serialVersionUID = 1L;
+
+	DuplexSecureRandom(int bitLength, byte[] seed) {
+		super(new DuplexSecureRandomSpi(bitLength, seed), SHA3Provider.INSTANCE);
 	}
+}
+
+
+/**
+ * The encoding functions of NIST SP 800-185.
+ */
+final class XofUtils {
+
+	private XofUtils() {}
+
+	static byte[] leftEncode(long strLen) {
+		byte n = 1;
+
+		long v = strLen;
+		while ((v >>= 8) != 0) {
+			n++;
+		}
 
-	private void iota(long[] A, int indexRound) {
-		A[(((0) % 5) + 5 * ((0) % 5))] ^= KeccakRoundConstants[indexRound];
+		byte[] b = new byte[n + 1];
+
+		b[0] = n;
+
+		for (int i = 1; i <= n; i++) {
+			b[i] = (byte) (strLen >> (8 * (n - i)));
+		}
+
+		return b;
 	}
 
-	private void KeccakAbsorb(byte[] byteState, byte[] data, int dataInBytes) {
-		keccakPermutationAfterXor(byteState, data, dataInBytes);
+	/**
+	 * left_encode into out, which needs room for 9 bytes, without allocating.
+	 * 
+	 * @return the number of bytes written
+	 */
+	static int leftEncode(long strLen, byte[] out) {
+		int n = 1;
+
+		long v = strLen;
+		while ((v >>>= 8) != 0) {
+			n++;
+		}
+
+		out[0] = (byte) n;
+
+		for (int i = 1; i <= n; i++) {
+			out[i] = (byte) (strLen >> (8 * (n - i)));
+		}
+
+		return n + 1;
 	}
 
-	private void KeccakExtract1024bits(byte[] byteState, byte[] data) {
-		System.arraycopy(byteState, 0, data, 0, 128);
+	static byte[] rightEncode(long strLen) {
+		byte n = 1;
+
+		long v = strLen;
+		while ((v >>= 8) != 0) {
+			n++;
+		}
+
+		byte[] b = new byte[n + 1];
+
+		b[n] = n;
+
+		for (int i = 0; i < n; i++) {
+			b[i] = (byte) (strLen >> (8 * (n - i - 1)));
+		}
+
+		return b;
 	}
 
-	private void KeccakExtract(byte[] byteState, byte[] data, int laneCount) {
-		System.arraycopy(byteState, 0, data, 0, laneCount * 8);
+	/**
+	 * length_encode of KangarooTwelve: like right_encode but with no bytes at
+	 * all for zero.
+	 */
+	static byte[] lengthEncode(long x) {
+		byte n = 0;
+
+		long v = x;
+		while (v != 0) {
+			n++;
+			v >>>= 8;
+		}
+
+		byte[] b = new byte[n + 1];
+
+		b[n] = n;
+
+		for (int i = 0; i < n; i++) {
+			b[i] = (byte) (x >> (8 * (n - i - 1)));
+		}
+
+		return b;
 	}
 
-	// from Arrays
-	private byte[] cloneBytes(byte[] data) {
-		if (data == null) {
-			return null;
+	static byte[] encodeString(byte[] str) {
+		if (str == null || str.length < 1) {
+			return leftEncode(0);
 		}
-		byte[] copy = new byte[data.length];
 
-		System.arraycopy(data, 0, copy, 0, data.length);
+		return concatenate(leftEncode(str.length * 8L), str);
+	}
 
-		return copy;
+	static byte[] concatenate(byte[]... parts) {
+		int len = 0;
+		for (byte[] part : parts) len += part.length;
+		byte[] result = new byte[len];
+		int off = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, off, part.length);
+			off += part.length;
+		}
+		return result;
 	}
 
+	// from Strings
+	static byte[] toBytes(String string) {
+		byte[] bytes = new byte[string.length()];
+
+		for (int i = 0; i != bytes.length; i++) {
+			bytes[i] = (byte) string.charAt(i);
+		}
+
+		return bytes;
+	}
 }
 
 // Interfaces
@@ -698,11 +3642,32 @@ interface Digest {
 
 	public void update(byte[] in, int inOff, int len);
 
+	/**
+	 * Update with the remaining bytes of in, heap or direct, leaving its
+	 * position at the limit.
+	 */
+	public void update(ByteBuffer in);
+
 	public int doFinal(byte[] out, int outOff);
 
 	public void reset();
 }
 
+/**
+ * State that can be captured and put back, as in Bouncy Castle.
+ */
+interface Memoable {
+	/**
+	 * A copy of the current state.
+	 */
+	public Memoable copy();
+
+	/**
+	 * Return to the state captured in other, as produced by copy().
+	 */
+	public void reset(Memoable other);
+}
+
 interface ExtendedDigest extends Digest {
 	public int getByteLength();
 }
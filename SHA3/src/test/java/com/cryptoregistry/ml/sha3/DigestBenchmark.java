@@ -0,0 +1,102 @@
+package com.cryptoregistry.ml.sha3;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every digest in the library over message sizes from 0 B to 64 MB, with
+ * the JDK's SHA3-256 (jdk) and the same engine reached through
+ * SHA3.getProvider() (provider) as baselines. Run with
+ * mvn test-compile exec:exec -Djmh.args=DigestBenchmark, narrowed as usual,
+ * e.g. -Djmh.args="DigestBenchmark -p algorithm=SHA3-256 -p size=1024".
+ * <p>
+ * The score is ns/op and the bytes counter comes out as ns per byte. For
+ * MB/s add -bm thrpt -tu us, which reports bytes per microsecond. Add
+ * -prof gc for the allocation rate: gc.alloc.rate.norm should be 0 B/op
+ * for all but provider and jdk, which return a new array each time. The
+ * 64 MB size relies on the -Xmx3g set in the pom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DigestBenchmark {
+
+	@Param({ "SHA3-224", "SHA3-256", "SHA3-384", "SHA3-512", "SHAKE128", "SHAKE256", "Keccak-288", "provider",
+			"jdk" })
+	String algorithm;
+
+	@Param({ "0", "64", "1024", "16384", "1048576", "67108864" })
+	int size;
+
+	byte[] message;
+	byte[] out = new byte[64];
+	Digest digest;
+	MessageDigest messageDigest;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException {
+		message = new byte[size];
+		new Random(49).nextBytes(message);
+
+		SHA3 sha3 = new SHA3();
+		if (algorithm.startsWith("SHA3-")) {
+			digest = sha3.getSHA3Digest(Integer.parseInt(algorithm.substring(5)));
+		} else if (algorithm.startsWith("SHAKE")) {
+			digest = sha3.getSHAKEDigest(Integer.parseInt(algorithm.substring(5)));
+		} else if (algorithm.startsWith("Keccak-")) {
+			digest = sha3.getKeccakDigest(Integer.parseInt(algorithm.substring(7)));
+		} else if (algorithm.equals("provider")) {
+			messageDigest = MessageDigest.getInstance("SHA3-256", SHA3.getProvider());
+		} else if (algorithm.equals("jdk")) {
+			messageDigest = MessageDigest.getInstance("SHA3-256");
+		} else {
+			throw new IllegalArgumentException(algorithm);
+		}
+	}
+
+	@Benchmark
+	public byte[] hash(Bytes counter) {
+		counter.bytes += size;
+		if (messageDigest != null) {
+			return messageDigest.digest(message);
+		}
+		digest.update(message, 0, message.length);
+		if (digest instanceof Xof) {
+			// full-strength output: 32 bytes for SHAKE128, 64 for SHAKE256
+			((Xof) digest).doFinal(out, 0, digest.getDigestSize() * 2);
+		} else {
+			digest.doFinal(out, 0);
+		}
+		return out;
+	}
+}
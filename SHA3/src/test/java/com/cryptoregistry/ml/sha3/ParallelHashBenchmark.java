@@ -0,0 +1,85 @@
+package com.cryptoregistry.ml.sha3;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ParallelHash and KangarooTwelve versus sequential SHA3-256 and SHAKE128
+ * over one large input, run with
+ * mvn clean test-compile exec:exec -Djmh.args=ParallelHashBenchmark. Each
+ * iteration hashes the whole input once; pass -p size=... for smaller runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelHashBenchmark {
+
+	@Param({ "1073741824" })
+	int size;
+
+	@Param({ "8192" })
+	int blockSize;
+
+	byte[] input;
+	byte[] out = new byte[64];
+
+	@Setup
+	public void setup() {
+		input = new byte[size];
+		new Random(37).nextBytes(input);
+	}
+
+	@Benchmark
+	public byte[] sha3_256() {
+		SHA3.hash(input, 0, input.length, out, 0);
+		return out;
+	}
+
+	@Benchmark
+	public byte[] parallelHash128() {
+		return parallelHash(128);
+	}
+
+	@Benchmark
+	public byte[] parallelHash256() {
+		return parallelHash(256);
+	}
+
+	@Benchmark
+	public byte[] shake128() {
+		return hash(new SHAKEDigest(128));
+	}
+
+	@Benchmark
+	public byte[] kangarooTwelve() {
+		return hash(new KangarooTwelve(null, null));
+	}
+
+	private byte[] hash(Xof digest) {
+		digest.update(input, 0, input.length);
+		digest.doFinal(out, 0, 32);
+		return out;
+	}
+
+	private byte[] parallelHash(int bitLength) {
+		Xof digest = new ParallelHash(bitLength, null, blockSize, null);
+		digest.update(input, 0, input.length);
+		digest.doFinal(out, 0);
+		return out;
+	}
+}
@@ -1,7 +1,24 @@
 package com.cryptoregistry.ml.sha3;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.Assert;
 
@@ -26,4 +43,1143 @@ public class SHA3Test {
 		Assert.assertTrue(expected.equals(val));
 	}
 
+	/*
+	 * For each parameter set the digests of a 0..250 repeating pattern at the
+	 * lengths below (around the block boundaries) are concatenated and the
+	 * SHA3-256 of that is compared with a reference value.
+	 */
+	@Test
+	public void knownAnswers() {
+		check(new SHA3Digest(224), "d26b233d69b94e8df3c83bf4d65f7d49693cac5b230e9d1f75dc91ba8c2aa694");
+		check(new SHA3Digest(256), "a66f6536e0c0df5da1cb3fd8f8e0ff363dcefc279d1f0efa7c0135986f4feecd");
+		check(new SHA3Digest(384), "31e340002290de7fcdaea5746b90af67516a65a433f8a2cf6a36164376a8fb31");
+		check(new SHA3Digest(512), "67ce5bdf338f6c5576e64dcd914b9f7915870a1b30b3b1deb78571fad665651b");
+		check(new SHAKEDigest(128), "c4dc8a9c6b8d214a512c77c3867f644e92e78eb99f9a93361f9c41223346d0d0");
+		check(new SHAKEDigest(256), "8087afa511009f2e6b9f08135ef463eaaab362ffffe06a4cf2093bb0773ab782");
+		check(new KeccakDigest(288), "ba044674c0ab9efbc4252ba87098d96b0d89b96e4f92d20f468f7bec8db6d40a");
+	}
+
+	private void check(KeccakDigest digest, String expected) {
+		int rate = digest.getByteLength();
+		int[] lengths = {0, 1, 7, 8, rate - 1, rate, rate + 1, 3 * rate + 5, 1000};
+		SHA3Digest acc = new SHA3Digest(256);
+		byte[] out = new byte[digest.getDigestSize()];
+		for (int len : lengths) {
+			byte[] msg = pattern(len);
+			
+			digest.update(msg, 0, len);
+			digest.doFinal(out, 0);
+			acc.update(out, 0, out.length);
+			
+			// same again, byte at a time, must match
+			byte[] bytewise = new byte[out.length];
+			for (byte b : msg) digest.update(b);
+			digest.doFinal(bytewise, 0);
+			Assert.assertEquals(digest.getAlgorithmName(), hex(out), hex(bytewise));
+		}
+		byte[] result = new byte[32];
+		acc.doFinal(result, 0);
+		Assert.assertEquals(digest.getAlgorithmName(), expected, hex(result));
+	}
+
+	@Test
+	public void splitUpdates() {
+		Random rand = new Random(34);
+		byte[] in = pattern(5000);
+		byte[] expected = new byte[32];
+		byte[] out = new byte[32];
+		SHA3.hash(in, 0, in.length, expected, 0);
+		
+		SHA3Digest digest = new SHA3Digest(256);
+		for (int n = 0; n < 50; n++) {
+			int off = 0;
+			while (off < in.length) {
+				int len = Math.min(in.length - off, rand.nextInt(400));
+				if (len == 1 && rand.nextBoolean()) {
+					digest.update(in[off]);
+				} else {
+					digest.update(in, off, len);
+				}
+				off += len;
+			}
+			digest.doFinal(out, 0);
+			Assert.assertEquals(hex(expected), hex(out));
+		}
+	}
+
+	@Test
+	public void oneShotHash() {
+		SHA3Digest digest = new SHA3Digest(256);
+		byte[] in = pattern(400);
+		byte[] expected = new byte[32];
+		byte[] out = new byte[40];
+		for (int len = 0; len <= 300; len++) {
+			digest.update(in, 7, len);
+			digest.doFinal(expected, 0);
+			Assert.assertEquals(32, SHA3.hash(in, 7, len, out, 8));
+			Assert.assertEquals(hex(expected), hex(Arrays.copyOfRange(out, 8, 40)));
+		}
+	}
+
+	@Test
+	public void batchMatchesDigest() {
+		Random rand = new Random(35);
+		for (int bits : new int[] {224, 256, 384, 512}) {
+			byte[][] messages = new byte[40][];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = new byte[rand.nextInt(600)];
+				rand.nextBytes(messages[i]);
+			}
+			byte[][] digests = SHA3.hashAll(messages, bits);
+			
+			SHA3Digest digest = new SHA3Digest(bits);
+			for (int i = 0; i < messages.length; i++) {
+				byte[] expected = new byte[bits / 8];
+				digest.update(messages[i], 0, messages[i].length);
+				digest.doFinal(expected, 0);
+				Assert.assertEquals(hex(expected), hex(digests[i]));
+			}
+			
+			byte[] all = new byte[1000];
+			rand.nextBytes(all);
+			byte[] chunks = new byte[8 * bits / 8];
+			Assert.assertEquals(8, SHA3.hashChunks(all, 3, 997, 128, chunks, 0, bits));
+			for (int i = 0; i < 8; i++) {
+				byte[] expected = new byte[bits / 8];
+				digest.update(all, 3 + i * 128, Math.min(128, 997 - i * 128));
+				digest.doFinal(expected, 0);
+				Assert.assertEquals(hex(expected), hex(Arrays.copyOfRange(chunks, i * bits / 8, (i + 1) * bits / 8)));
+			}
+		}
+	}
+
+	@Test
+	public void parallelBatchMatchesDigest() {
+		Random rand = new Random(36);
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			for (int ways : new int[] {1, 4, 8}) {
+				for (int n = 0; n < 6; n++) {
+					int bits = new int[] {224, 256, 384, 512}[rand.nextInt(4)];
+					byte[][] messages = new byte[1 + rand.nextInt(100)][];
+					for (int i = 0; i < messages.length; i++) {
+						messages[i] = new byte[rand.nextInt(4000)];
+						rand.nextBytes(messages[i]);
+					}
+					byte[][] digests = new byte[messages.length][bits / 8];
+					new KeccakBatch(200 - bits / 4, 0x06, bits / 8, ways, n % 2 == 0 ? null : pool).hash(messages, digests);
+					
+					SHA3Digest digest = new SHA3Digest(bits);
+					for (int i = 0; i < messages.length; i++) {
+						byte[] expected = new byte[bits / 8];
+						digest.update(messages[i], 0, messages[i].length);
+						digest.doFinal(expected, 0);
+						Assert.assertEquals(hex(expected), hex(digests[i]));
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void cshake() {
+		Xof cshake = new SHA3().getCSHAKEDigest(128, null, "Email Signature".getBytes(StandardCharsets.US_ASCII));
+		Assert.assertEquals("c1c36925b6409a04f1b504fcbca9d82b4017277cb5ed2b2065fc1d3814d5aaf5",
+				hex(doFinal(cshake, new byte[] {0, 1, 2, 3}, 32)));
+		// reset must restore the customization prefix
+		Assert.assertEquals("c1c36925b6409a04f1b504fcbca9d82b4017277cb5ed2b2065fc1d3814d5aaf5",
+				hex(doFinal(cshake, new byte[] {0, 1, 2, 3}, 32)));
+		
+		cshake = new SHA3().getCSHAKEDigest(256, new byte[0], "Email Signature".getBytes(StandardCharsets.US_ASCII));
+		byte[] in = new byte[200];
+		for (int i = 0; i < in.length; i++) in[i] = (byte) i;
+		Assert.assertEquals("07dc27b11e51fbac75bc7b3c1d983e8b4b85fb1defaf218912ac86430273091727f42b17ed1df63e8ec118f04b23633c1dfb1574c8fb55cb45da8e25afb092bb",
+				hex(doFinal(cshake, in, 64)));
+		
+		cshake = new SHA3().getCSHAKEDigest(128, "My Function".getBytes(StandardCharsets.US_ASCII), null);
+		Assert.assertEquals("cf21aa322342f7e167c59a0b046c96519c0762077aa7019d1f07a246dc35f27f",
+				hex(doFinal(cshake, pattern(10), 32)));
+	}
+
+	@Test
+	public void parallelHash() {
+		byte[] X = unhex("000102030405060710111213141516172021222324252627");
+		byte[] S = "Parallel Data".getBytes(StandardCharsets.US_ASCII);
+		SHA3 sha3 = new SHA3();
+		
+		Assert.assertEquals("ba8dc1d1d979331d3f813603c67f72609ab5e44b94a0b8f9af46514454a2b4f5",
+				hex(doFinal(sha3.getParallelHash(128, 8, null), X, 32)));
+		Assert.assertEquals("fc484dcb3f84dceedc353438151bee58157d6efed0445a81f165e495795b7206",
+				hex(doFinal(sha3.getParallelHash(128, 8, S), X, 32)));
+		Assert.assertEquals("cdf15289b54f6212b4bc270528b49526006dd9b54e2b6add1ef6900dda3963bb33a72491f236969ca8afaea29c682d47a393c065b38e29fae651a2091c833110",
+				hex(doFinal(sha3.getParallelHash(256, 8, S), X, 64)));
+		
+		Xof xof = sha3.getParallelHash(128, 8, S);
+		xof.update(X, 0, X.length);
+		byte[] out = new byte[32];
+		xof.doOutput(out, 0, 16);
+		xof.doOutput(out, 16, 16);
+		Assert.assertEquals("ea2a793140820f7a128b8eb70a9439f93257c6e6e79b4a540d291d6dae7098d7", hex(out));
+		
+		// large enough for the leaves to be hashed in parallel, fed in odd pieces
+		Xof ph = sha3.getParallelHash(256, 1024, "x".getBytes(StandardCharsets.US_ASCII));
+		byte[] big = pattern(200000);
+		ph.update(big, 0, 5);
+		ph.update(big[5]);
+		ph.update(big, 6, 150000);
+		ph.update(big, 150006, 200000 - 150006);
+		out = new byte[64];
+		ph.doFinal(out, 0);
+		Assert.assertEquals("fde8b0cd2865246a217a50ad0df388746a7ec364c6ada7c00bb8c696290a47bbec083b9325475a99e446e1e5019da96d3f88fd18470384b752072d072754a0ef",
+				hex(out));
+		
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			Assert.assertEquals("aab71fcc9b9f72c9874eac96c899458885de6fa6ce3fd70aaafb86b3f4becf90",
+					hex(doFinal(sha3.getParallelHash(128, 8192, null, pool), pattern(300001), 32)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void fileAndChannel() throws IOException {
+		Path file = Files.createTempFile("sha3", ".bin");
+		try {
+			for (int len : new int[] {0, 1, 135, 136, 137, 100000, 300007}) {
+				byte[] in = pattern(len);
+				byte[] expected = new byte[32];
+				SHA3.hash(in, 0, len, expected, 0);
+				Files.write(file, in);
+
+				Assert.assertEquals(hex(expected), hex(SHA3.hash(file)));
+
+				Digest digest = new SHA3Digest(256);
+				SHA3.update(digest, Channels.newChannel(new ByteArrayInputStream(in)));
+				byte[] out = new byte[32];
+				digest.doFinal(out, 0);
+				Assert.assertEquals(hex(expected), hex(out));
+
+				// small mapping windows, not a multiple of the rate
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					SHA3.update(digest, channel, 0, len, 1000);
+				}
+				digest.doFinal(out, 0);
+				Assert.assertEquals(hex(expected), hex(out));
+
+				// not a KeccakDigest
+				Xof k12 = new SHA3().getKangarooTwelve(null);
+				SHA3.update(k12, file);
+				Assert.assertEquals(hex(doFinal(new SHA3().getKangarooTwelve(null), in, 32)), hex(doFinal(k12, new byte[0], 32)));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void byteBufferUpdate() {
+		byte[] in = pattern(1000);
+		SHA3Digest digest = new SHA3Digest(256);
+		byte[] expected = new byte[32];
+		byte[] out = new byte[32];
+		for (int len : new int[] {0, 5, 136, 137, 997}) {
+			digest.update(in, 3, len);
+			digest.doFinal(expected, 0);
+
+			ByteBuffer heap = ByteBuffer.wrap(in, 3, len);
+			ByteBuffer direct = ByteBuffer.allocateDirect(len);
+			direct.put(in, 3, len).flip();
+			for (ByteBuffer buf : new ByteBuffer[] {heap, direct}) {
+				// an odd leading update so the queue is not empty
+				if (buf.hasRemaining()) digest.update(buf.get());
+				digest.update(buf);
+				Assert.assertFalse(buf.hasRemaining());
+				Assert.assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+				digest.doFinal(out, 0);
+				Assert.assertEquals(hex(expected), hex(out));
+			}
+		}
+	}
+
+	@Test
+	public void byteBufferUpdateAllDigests() {
+		SHA3 sha3 = new SHA3();
+		byte[] in = pattern(80000);
+		for (int len : new int[] {0, 7, 200, 9000, 70000}) {
+			for (int n = 0; n < 7; n++) {
+				Digest[] digests = new Digest[3];
+				for (int i = 0; i < digests.length; i++) {
+					switch (n) {
+					case 0: digests[i] = sha3.getSHA3Digest(); break;
+					case 1: digests[i] = sha3.getSHAKEDigest(); break;
+					case 2: digests[i] = sha3.getCSHAKEDigest(256, null, pattern(3)); break;
+					case 3: digests[i] = sha3.getTurboSHAKEDigest(128, 0x1F); break;
+					case 4: digests[i] = sha3.getParallelHash(128, 8, null); break;
+					case 5: digests[i] = sha3.getParallelHash(256, 1000, null); break;
+					default: digests[i] = sha3.getKangarooTwelve(null); break;
+					}
+					// a short leading update leaves partial blocks and leaves behind
+					digests[i].update(in, 0, 5);
+				}
+				digests[0].update(in, 5, len);
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(len + 8);
+				direct.put(new byte[3]).put(in, 5, len).flip().position(3);
+				digests[1].update(direct);
+				Assert.assertEquals(direct.limit(), direct.position());
+
+				ByteBuffer readOnly = ByteBuffer.wrap(in, 5, len).asReadOnlyBuffer();
+				digests[2].update(readOnly);
+				Assert.assertFalse(readOnly.hasRemaining());
+
+				byte[] expected = new byte[digests[0].getDigestSize()];
+				digests[0].doFinal(expected, 0);
+				for (int i = 1; i < digests.length; i++) {
+					byte[] out = new byte[expected.length];
+					digests[i].doFinal(out, 0);
+					Assert.assertEquals(digests[i].getAlgorithmName() + " " + len, hex(expected), hex(out));
+				}
+			}
+		}
+
+		// in place from one buffer on several threads
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			ByteBuffer direct = ByteBuffer.allocateDirect(in.length).order(ByteOrder.LITTLE_ENDIAN);
+			direct.put(in).flip();
+			for (int ways : new int[] {4, 8}) {
+				KeccakBatch batch = new KeccakBatch(136, 0x06, 32, ways, pool);
+				byte[] expected = new byte[32 * 10];
+				byte[] out = new byte[32 * 10];
+				Assert.assertEquals(10, batch.hashChunks(in, 11, 75001, 7777, expected, 0));
+				Assert.assertEquals(10, batch.hashChunks(direct, 11, 75001, 7777, out, 0));
+				Assert.assertEquals(hex(expected), hex(out));
+				Assert.assertEquals(0, direct.position());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	static byte[] doFinal(Xof xof, byte[] in, int outLen) {
+		xof.update(in, 0, in.length);
+		byte[] out = new byte[outLen];
+		xof.doFinal(out, 0, outLen);
+		return out;
+	}
+
+	@Test
+	public void unrolledPermutationMatchesReference() {
+		Random rand = new Random(32);
+		long[] a = new long[25];
+		long[] b = new long[25];
+		for (int n = 0; n < 1000; n++) {
+			int rounds = n % 2 == 0 ? 24 : 12;
+			for (int i = 0; i < 25; i++) a[i] = b[i] = rand.nextLong();
+			KeccakDigest.keccakPermutationOnWords(a, rounds);
+			referencePermutation(b, rounds);
+			Assert.assertTrue(Arrays.equals(a, b));
+		}
+	}
+
+	@Test
+	public void prefixSnapshot() {
+		byte[] prefix = pattern(1000);
+		byte[] suffix = pattern(300);
+		KeccakDigest[] digests = { new SHA3Digest(256), new SHA3Digest(512), new SHAKEDigest(256),
+				new CSHAKEDigest(128, null, pattern(5)), new TurboSHAKEDigest(128, 0x07), new KeccakDigest(288) };
+		for (KeccakDigest digest : digests) {
+			digest.update(prefix, 0, 997);
+			Memoable snapshot = digest.copy();
+			Assert.assertEquals(digest.getClass(), snapshot.getClass());
+
+			for (int len = 0; len < suffix.length; len += 37) {
+				byte[] all = Arrays.copyOf(prefix, 997 + len);
+				System.arraycopy(suffix, 0, all, 997, len);
+				byte[] expected = new byte[digest.getDigestSize()];
+				KeccakDigest fresh = (KeccakDigest) digest.copy();
+				fresh.reset();
+				fresh.update(all, 0, all.length);
+				fresh.doFinal(expected, 0);
+
+				digest.reset(snapshot);
+				digest.update(suffix, 0, len);
+				byte[] out = new byte[expected.length];
+				digest.doFinal(out, 0);
+				Assert.assertEquals(digest.getAlgorithmName(), hex(expected), hex(out));
+			}
+		}
+
+		// an XOF snapshot taken while squeezing continues the output
+		SHAKEDigest shake = new SHAKEDigest(128);
+		shake.update(prefix, 0, prefix.length);
+		byte[] stream = new byte[500];
+		shake.doOutput(stream, 0, 100);
+		Memoable snapshot = shake.copy();
+		shake.doOutput(stream, 100, 400);
+		byte[] again = new byte[400];
+		shake.reset(snapshot);
+		shake.doOutput(again, 0, 400);
+		Assert.assertEquals(hex(Arrays.copyOfRange(stream, 100, 500)), hex(again));
+
+		try {
+			new SHA3Digest(256).reset(new SHA3Digest(384));
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new SHA3Digest(256).reset(new KeccakDigest(256));
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new CSHAKEDigest(128, null, pattern(5)).reset(new CSHAKEDigest(128, null, pattern(6)));
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void exportImportState() {
+		byte[] in = pattern(3000);
+		KeccakDigest[] digests = { new SHA3Digest(256), new SHA3Digest(224), new SHAKEDigest(128),
+				new CSHAKEDigest(256, pattern(3), null), new TurboSHAKEDigest(128, 0x0B), new KeccakDigest(288) };
+		for (KeccakDigest digest : digests) {
+			KeccakDigest resumed = (KeccakDigest) digest.copy();
+			for (int split : new int[] {0, 1, 135, 136, 1001, 3000}) {
+				digest.update(in, 0, in.length);
+				byte[] expected = new byte[digest.getDigestSize()];
+				digest.doFinal(expected, 0);
+
+				// part one on one node, part two after an import on another
+				digest.update(in, 0, split);
+				byte[] state = SHA3.exportState(digest);
+				Assert.assertTrue(state.length <= 400);
+				resumed.reset();
+				SHA3.importState(resumed, state);
+				resumed.update(in, split, in.length - split);
+				byte[] out = new byte[expected.length];
+				resumed.doFinal(out, 0);
+				Assert.assertEquals(digest.getAlgorithmName(), hex(expected), hex(out));
+				digest.reset();
+			}
+		}
+
+		// a state taken while squeezing
+		SHAKEDigest shake = new SHAKEDigest(256);
+		shake.update(in, 0, 100);
+		SHAKEDigest other = new SHAKEDigest(256);
+		other.importState(shake.exportState());
+		byte[] a = new byte[300];
+		byte[] b = new byte[300];
+		shake.doOutput(a, 0, 50);
+		other.doOutput(b, 0, 50);
+		other.importState(shake.exportState());
+		shake.doOutput(a, 50, 250);
+		other.doOutput(b, 50, 250);
+		Assert.assertEquals(hex(a), hex(b));
+
+		byte[] state = new SHA3Digest(256).exportState();
+		try {
+			new SHA3Digest(384).importState(state);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new KeccakDigest(256).importState(state);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new SHA3Digest(256).importState(Arrays.copyOf(state, state.length - 1));
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			SHA3.exportState(new SHA3().getKangarooTwelve(null));
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		// a version 1 state has no parameters field
+		state = new SHA3Digest(256).exportState();
+		byte[] v1 = new byte[state.length - 1];
+		System.arraycopy(state, 0, v1, 0, 10);
+		System.arraycopy(state, 11, v1, 10, v1.length - 10);
+		v1[0] = 1;
+		new SHA3Digest(256).importState(v1);
+
+		// the customization and domain byte travel with the state
+		CSHAKEDigest cshake = new CSHAKEDigest(256, null, XofUtils.toBytes("a"));
+		cshake.update(in, 0, 10);
+		state = cshake.exportState();
+		new CSHAKEDigest(256, null, XofUtils.toBytes("a")).importState(state);
+		KeccakDigest[] mismatched = { new CSHAKEDigest(256, null, XofUtils.toBytes("b")),
+				new CSHAKEDigest(256, XofUtils.toBytes("a"), null), new CSHAKEDigest(256, null, null) };
+		for (KeccakDigest digest : mismatched) {
+			try {
+				digest.importState(state);
+				Assert.fail();
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+		state = new TurboSHAKEDigest(128, 0x0B).exportState();
+		try {
+			new TurboSHAKEDigest(128, 0x0C).importState(state);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new TurboSHAKEDigest(128).importState(state);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void allParameterSetsAndCache() throws Exception {
+		SHA3 sha3 = new SHA3();
+		byte[] in = pattern(300);
+		for (int bits : new int[] {224, 256, 384, 512}) {
+			Digest borrowed = SHA3.borrowSHA3Digest(bits);
+			Assert.assertEquals("SHA3-" + bits, borrowed.getAlgorithmName());
+			borrowed.update(in, 0, 100);
+			// borrowing again hands back the same digest, reset
+			Assert.assertSame(borrowed, SHA3.borrowSHA3Digest(bits));
+			Assert.assertEquals(hex(digest(sha3.getSHA3Digest(bits), in)), hex(digest(borrowed, in)));
+		}
+		for (int bits : new int[] {128, 256}) {
+			Xof borrowed = SHA3.borrowSHAKEDigest(bits);
+			Assert.assertSame(borrowed, SHA3.borrowSHAKEDigest(bits));
+			Assert.assertEquals(hex(digest(sha3.getSHAKEDigest(bits), in)), hex(digest(borrowed, in)));
+		}
+		for (int bits : new int[] {128, 224, 256, 288, 384, 512}) {
+			Digest borrowed = SHA3.borrowKeccakDigest(bits);
+			Assert.assertEquals("Keccak-" + bits, borrowed.getAlgorithmName());
+			Assert.assertEquals(hex(digest(sha3.getKeccakDigest(bits), in)), hex(digest(borrowed, in)));
+		}
+		Assert.assertNotSame(SHA3.borrowSHA3Digest(256), SHA3.borrowKeccakDigest(256));
+		try {
+			SHA3.borrowSHA3Digest(288);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		// other threads have their own
+		final Digest mine = SHA3.borrowSHA3Digest(256);
+		final Digest[] theirs = new Digest[1];
+		Thread t = new Thread() {
+			public void run() {
+				theirs[0] = SHA3.borrowSHA3Digest(256);
+			}
+		};
+		t.start();
+		t.join();
+		Assert.assertNotNull(theirs[0]);
+		Assert.assertNotSame(mine, theirs[0]);
+		Assert.assertFalse(DigestCache.isVirtual(Thread.currentThread()));
+	}
+
+	static byte[] digest(Digest digest, byte[] in) {
+		digest.update(in, 0, in.length);
+		byte[] out = new byte[digest.getDigestSize()];
+		digest.doFinal(out, 0);
+		return out;
+	}
+
+	@Test
+	public void kmac() {
+		SHA3 sha3 = new SHA3();
+		byte[] K = unhex("404142434445464748494a4b4c4d4e4f505152535455565758595a5b5c5d5e5f");
+		byte[] S = "My Tagged Application".getBytes(StandardCharsets.US_ASCII);
+		byte[] X = pattern(200);
+
+		Xof kmac = sha3.getKMAC(128, K, null);
+		Assert.assertEquals("e5780b0d3ea6f7d3a429c5706aa43a00fadbd7d49628839e3187243f456ee14e",
+				hex(doFinal(kmac, new byte[] {0, 1, 2, 3}, 32)));
+		// the next MAC starts again from the keyed snapshot
+		Assert.assertEquals("e5780b0d3ea6f7d3a429c5706aa43a00fadbd7d49628839e3187243f456ee14e",
+				hex(doFinal(kmac, new byte[] {0, 1, 2, 3}, 32)));
+
+		kmac = sha3.getKMAC(128, K, S);
+		Assert.assertEquals("3b1fba963cd8b0b59e8c1a6d71888b7143651af8ba0a7070c0979e2811324aa5",
+				hex(doFinal(kmac, new byte[] {0, 1, 2, 3}, 32)));
+		Assert.assertEquals("1f5b4e6cca02209e0dcb5ca635b89a15e271ecc760071dfd805faa38f9729230",
+				hex(doFinal(kmac, X, 32)));
+
+		kmac = sha3.getKMAC(256, K, S);
+		Assert.assertEquals("20c570c31346f703c9ac36c61c03cb64c3970d0cfc787e9b79599d273a68d2f7"
+				+ "f69d4cc3de9d104a351689f27cf6f5951f0103f33f4f24871024d9c27773a8dd",
+				hex(doFinal(kmac, new byte[] {0, 1, 2, 3}, 64)));
+		Assert.assertEquals("75358cf39e41494e949707927cee0af20a3ff553904c86b08f21cc414bcfd691"
+				+ "589d27cf5e15369cbbff8b9a4c2eb17800855d0235ff635da82533ec6b759b69",
+				hex(doFinal(sha3.getKMAC(256, K, null), X, 64)));
+
+		// KMACXOF
+		kmac = sha3.getKMAC(128, K, null);
+		kmac.update(new byte[] {0, 1, 2, 3}, 0, 4);
+		byte[] out = new byte[32];
+		kmac.doOutput(out, 0, 10);
+		kmac.doOutput(out, 10, 22);
+		Assert.assertEquals("cd83740bbd92ccc8cf032b1481a0f4460e7ca9dd12b08a0c4031178bacd6ec35", hex(out));
+		kmac.reset();
+		Assert.assertEquals("e5780b0d3ea6f7d3a429c5706aa43a00fadbd7d49628839e3187243f456ee14e",
+				hex(doFinal(kmac, new byte[] {0, 1, 2, 3}, 32)));
+
+		// a key longer than the rate
+		Assert.assertEquals("be71d1484bc17486c406a97846791c30bc473bcd43c2c81e7ef3d9b069714497",
+				hex(doFinal(sha3.getKMAC(128, pattern(200), null), pattern(1000), 32)));
+	}
+
+	@Test
+	public void xofReader() throws IOException {
+		SHA3 sha3 = new SHA3();
+		byte[] in = pattern(500);
+		Random rand = new Random(43);
+		for (int n = 0; n < 6; n++) {
+			Xof[] xofs = new Xof[2];
+			for (int i = 0; i < xofs.length; i++) {
+				switch (n) {
+				case 0: xofs[i] = new SHAKEDigest(128); break;
+				case 1: xofs[i] = new SHAKEDigest(256); break;
+				case 2: xofs[i] = new TurboSHAKEDigest(256, 0x1F); break;
+				case 3: xofs[i] = new CSHAKEDigest(128, pattern(4), null); break;
+				case 4: xofs[i] = sha3.getKMAC(256, pattern(32), null); break;
+				default: xofs[i] = sha3.getKangarooTwelve(null); break;
+				}
+				xofs[i].update(in, 0, in.length);
+			}
+			byte[] expected = new byte[20000];
+			xofs[0].doOutput(expected, 0, 10);
+			xofs[0].doOutput(expected, 10, expected.length - 10);
+
+			XofReader reader = sha3.getXofReader(xofs[1]);
+			byte[] out = new byte[expected.length];
+			int off = 0;
+			while (off < out.length) {
+				int len = Math.min(out.length - off, rand.nextInt(700));
+				switch (rand.nextInt(5)) {
+				case 0:
+					if (len > 0) out[off] = (byte) reader.read();
+					len = Math.min(len, 1);
+					break;
+				case 1:
+					Assert.assertEquals(len, reader.read(out, off, len));
+					break;
+				case 2:
+					ByteBuffer direct = ByteBuffer.allocateDirect(len);
+					Assert.assertEquals(len, reader.read(direct));
+					Assert.assertFalse(direct.hasRemaining());
+					direct.flip();
+					direct.get(out, off, len);
+					break;
+				case 3:
+					Assert.assertEquals(len, reader.read(ByteBuffer.wrap(out, off, len)));
+					break;
+				default:
+					Assert.assertEquals(len, reader.skip(len));
+					System.arraycopy(expected, off, out, off, len);
+					break;
+				}
+				off += len;
+			}
+			Assert.assertEquals(xofs[1].getAlgorithmName(), hex(expected), hex(out));
+		}
+	}
+
+	@Test
+	public void tupleHash() {
+		SHA3 sha3 = new SHA3();
+		byte[] X = unhex("000102101112131415202122232425262728");
+		byte[] S = "My Tuple App".getBytes(StandardCharsets.US_ASCII);
+
+		TupleHash tuple = sha3.getTupleHash(128, null);
+		tuple.update(X, 0, 3);
+		tuple.update(X, 3, 6);
+		byte[] out = new byte[32];
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("c5d8786c1afb9b82111ab34b65b2c0048fa64e6d48e263264ce1707d3ffc8ed1", hex(out));
+		// reset by doFinal
+		tuple.addField(X, 0, 3);
+		tuple.addField(X, 3, 6);
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("c5d8786c1afb9b82111ab34b65b2c0048fa64e6d48e263264ce1707d3ffc8ed1", hex(out));
+
+		tuple = sha3.getTupleHash(128, S);
+		tuple.update(X, 0, 3);
+		tuple.update(ByteBuffer.wrap(X, 3, 6));
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("75cdb20ff4db1154e841d758e24160c54bae86eb8c13e7f5f40eb35588e96dfb", hex(out));
+		tuple.update(X, 0, 3);
+		tuple.update(X, 3, 6);
+		tuple.update(X, 9, 9);
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("e60f202c89a2631eda8d4c588ca5fd07f39e5151998deccf973adb3804bb6e84", hex(out));
+
+		tuple = sha3.getTupleHash(256, S);
+		tuple.update(X, 0, 3);
+		tuple.update(X, 3, 6);
+		tuple.update(X, 9, 9);
+		out = new byte[64];
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("45000be63f9b6bfd89f54717670f69a9bc763591a4f05c50d68891a744bcc6e7"
+				+ "d6d5b5e82c018da999ed35b0bb49c9678e526abd8e85c13ed254021db9e790ce", hex(out));
+
+		// TupleHashXOF, the empty tuple and one empty field
+		tuple = sha3.getTupleHash(128, null);
+		tuple.update(X, 0, 3);
+		tuple.update(X, 3, 6);
+		out = new byte[32];
+		tuple.doOutput(out, 0, 32);
+		Assert.assertEquals("2f103cd7c32320353495c68de1a8129245c6325f6f2a3d608d92179c96e68488", hex(out));
+		tuple.reset();
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("786aa3d4fcaadf0aa723a4818a1a72de2330d613e5de7ae4eb6cb4cdd26adba2", hex(out));
+		tuple.update(X, 0, 0);
+		tuple.doFinal(out, 0);
+		Assert.assertEquals("549330469327c593eb95b1d467c48e5781939e135e10632c804ef8a69c73281c", hex(out));
+
+		// longs and strings are the same as their byte encodings
+		String text = "record \u00e9\u20ac\ud83d\ude00 \ud800 end " + new String(new char[200]).replace('\0', 'x');
+		byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+		byte[] big = { 0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef };
+		TupleHash fields = sha3.getTupleHash(256, S);
+		TupleHash bytes = sha3.getTupleHash(256, S);
+		fields.addField(0x0123456789abcdefL);
+		bytes.update(big, 0, 8);
+		fields.addField(text);
+		bytes.update(utf8, 0, utf8.length);
+		fields.update((byte) 7);
+		bytes.update(new byte[] {7}, 0, 1);
+		byte[] expected = new byte[64];
+		bytes.doFinal(expected, 0);
+		out = new byte[64];
+		fields.doFinal(out, 0);
+		Assert.assertEquals(hex(expected), hex(out));
+	}
+
+	@Test
+	public void turboShake() {
+		SHA3 sha3 = new SHA3();
+		Assert.assertEquals("1e415f1c5983aff2169217277d17bb538cd945a397ddec541f1ce41af2c1b74c",
+				hex(doFinal(sha3.getTurboSHAKEDigest(128, 0x1F), new byte[0], 32)));
+		Assert.assertEquals("9c97d036a3bac819db70ede0ca554ec6e4c2a1a4ffbfd9ec269ca6a111161233",
+				hex(doFinal(sha3.getTurboSHAKEDigest(128, 0x1F), pattern(17), 32)));
+		Assert.assertEquals("f60392c729dc7928e8b2e36fed5bff8a5a4275cf377ca196483a8cb6ecae8a13",
+				hex(doFinal(sha3.getTurboSHAKEDigest(128, 0x06), pattern(289), 32)));
+		Assert.assertEquals("bf323f940494e88ee1c540fe660be8a0c93f43d15ec006998462fa994eed5dab",
+				hex(doFinal(sha3.getTurboSHAKEDigest(128, 0x01), unhex("ffffff"), 32)));
+		Assert.assertEquals("367a329dafea871c7802ec67f905ae13c57695dc2c6663c61035f59a18f8e7db"
+				+ "11edc0e12e91ea60eb6b32df06dd7f002fbafabb6e13ec1cc20d995547600db0",
+				hex(doFinal(sha3.getTurboSHAKEDigest(256, 0x1F), new byte[0], 64)));
+		Assert.assertEquals("446f2112dcfac2112244dfbe15ca8d84e459c16874e5a8169138ccbb91806eaf"
+				+ "960c187180edf944e4ae11411f808b935cf1c7978e8837484b4d2f9b0c494e3d",
+				hex(doFinal(sha3.getTurboSHAKEDigest(256, 0x0B), pattern(4913), 64)));
+	}
+
+	@Test
+	public void kangarooTwelve() {
+		SHA3 sha3 = new SHA3();
+		Assert.assertEquals("1ac2d450fc3b4205d19da7bfca1b37513c0803577ac7167f06fe2ce1f0ef39e5",
+				hex(doFinal(sha3.getKangarooTwelve(null), new byte[0], 32)));
+		Assert.assertEquals("6bf75fa2239198db4772e36478f8e19b0f371205f6a9a93a273f51df37122888",
+				hex(doFinal(sha3.getKangarooTwelve(null), pattern(17), 32)));
+		Assert.assertEquals("76f06e60fba37414e0dc56d9d1e5d03b2d38c672b70c8c51d2e00a4fa959f1aa",
+				hex(doFinal(sha3.getKangarooTwelve(pattern(41)), new byte[0], 32)));
+
+		// around the chunk boundary, where the tree starts
+		int[] sizes = { 8191, 8192, 8193, 16384, 16385, 83521 };
+		String[] expected = {
+				"1b577636f723643e990cc7d6a659837436fd6a103626600eb8301cd1dbe553d6",
+				"48f256f6772f9edfb6a8b661ec92dc93b95ebd05a08a17b39ae3490870c926c3",
+				"bb66fe72eaea5179418d5295ee1344854d8ad7f3fa17efcb467ec152341284cf",
+				"82778f7f7234c83352e76837b721fbdbb5270b88010d84fa5ab0b61ec8ce0956",
+				"5f8d2b943922b451842b4e82740d02369e2d5f9f33c5123509a53b955fe177b2",
+				"8701045e22205345ff4dda05555cbb5c3af1a771c2b89baef37db43d9998b9fe" };
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] in = pattern(sizes[i]);
+			Assert.assertEquals(expected[i], hex(doFinal(sha3.getKangarooTwelve(null), in, 32)));
+
+			// byte at a time and odd splits
+			Xof k12 = sha3.getKangarooTwelve(null);
+			for (int j = 0; j < 100; j++) k12.update(in[j]);
+			k12.update(in, 100, 9000 < in.length ? 9000 - 100 : in.length - 100);
+			if (in.length > 9000) k12.update(in, 9000, in.length - 9000);
+			byte[] out = new byte[32];
+			k12.doFinal(out, 0, 32);
+			Assert.assertEquals(expected[i], hex(out));
+		}
+
+		// the customization string can push the input over a chunk
+		Assert.assertEquals("92684b6bd17b44a5f8329253362434fb34b05ed34eed1d99c6cc11ec363b574e",
+				hex(doFinal(sha3.getKangarooTwelve(pattern(1)), pattern(8191), 32)));
+		Assert.assertEquals("7b4437c8b64025f32868378499739d054ebeb18cf9a93ab3c3e2aafe793b90c8",
+				hex(doFinal(sha3.getKangarooTwelve(pattern(1)), pattern(8192), 32)));
+
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			Assert.assertEquals("07590585d88220ba243878f981678ba69a6cbf000e3e49aa98fd840bd8609f1f",
+					hex(doFinal(sha3.getKangarooTwelve(pattern(289), pool), pattern(100000), 32)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void merkleTree() throws IOException {
+		Assert.assertEquals("59fce8ed1cd00b1c33a2de5960e3d8f918db4d6e40ecaf4b42785c53722912a5",
+				hex(SHA3.buildMerkleTree(pattern(1000), 0, 1000, 64).getRoot()));
+		Assert.assertEquals("a7ffc6f8bf1ed76651c14756a061d662f580ff4de43b49fa82d80a4b80f8434a",
+				hex(SHA3.buildMerkleTree(new byte[0], 0, 0, 64).getRoot()));
+
+		// the prefixed one-shot sponge against a digest over prefix || data
+		for (int len = 0; len < 300; len++) {
+			byte[] in = pattern(len + 3);
+			byte[] expected = new byte[32];
+			Digest digest = new SHA3Digest(256);
+			digest.update((byte) 1);
+			digest.update(in, 3, len);
+			digest.doFinal(expected, 0);
+			byte[] out = new byte[32];
+			KeccakDigest.hashPrefixed(new long[25], 24, 136, 0x06, (byte) 1, in, 3, len, out, 0, 32);
+			Assert.assertTrue(Arrays.equals(expected, out));
+		}
+
+		Random random = new Random(47);
+		for (int n = 0; n <= 20; n++) {
+			int leafSize = 1 + random.nextInt(200);
+			int len = n == 0 ? 0 : (n - 1) * leafSize + 1 + random.nextInt(leafSize);
+			byte[] data = new byte[len];
+			random.nextBytes(data);
+
+			MerkleTree tree = SHA3.buildMerkleTree(data, 0, len, leafSize);
+			Assert.assertEquals(n, tree.getLeafCount());
+			byte[] root = tree.getRoot();
+			Assert.assertEquals(hex(referenceMerkleRoot(data, 0, n, leafSize)), hex(root));
+			Assert.assertEquals(hex(root),
+					hex(SHA3.merkleRoot(Channels.newChannel(new ByteArrayInputStream(data)), leafSize)));
+
+			for (int i = 0; i < n; i++) {
+				int off = i * leafSize;
+				int m = Math.min(leafSize, len - off);
+				byte[][] proof = tree.getProof(i);
+				Assert.assertTrue(SHA3.verifyMerkleProof(root, i, n, data, off, m, proof));
+				if (proof.length > 0) {
+					proof[proof.length - 1][0] ^= 1;
+					Assert.assertFalse(SHA3.verifyMerkleProof(root, i, n, data, off, m, proof));
+					proof[proof.length - 1][0] ^= 1;
+				}
+				Assert.assertFalse(SHA3.verifyMerkleProof(root, i, n, data, off, m, Arrays.copyOf(proof, proof.length + 1)));
+				Assert.assertFalse(SHA3.verifyMerkleProof(root, i, n, data, off, m - 1, proof));
+			}
+
+			// changing one leaf matches a rebuild
+			if (n > 0) {
+				int i = random.nextInt(n);
+				int off = i * leafSize;
+				data[off] ^= 0x55;
+				tree.updateLeaf(i, data, off, Math.min(leafSize, len - off));
+				Assert.assertEquals(hex(referenceMerkleRoot(data, 0, n, leafSize)), hex(tree.getRoot()));
+				Assert.assertTrue(SHA3.verifyMerkleProof(tree.getRoot(), i, n, data, off,
+						Math.min(leafSize, len - off), tree.getProof(i)));
+			}
+		}
+
+		// only the last leaf may be short
+		MerkleTree tree = SHA3.buildMerkleTree(pattern(250), 0, 250, 100);
+		int[][] bad = { { 0, 99 }, { 1, 0 }, { 1, 101 }, { 2, 0 }, { 2, 101 } };
+		for (int[] leaf : bad) {
+			try {
+				tree.updateLeaf(leaf[0], new byte[101], 0, leaf[1]);
+				Assert.fail();
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+		tree.updateLeaf(2, pattern(100), 0, 100);
+		tree.updateLeaf(1, pattern(100), 0, 100);
+
+		byte[] data = pattern(100000);
+		// many batches of leaves, the last leaf short
+		for (int leafSize : new int[] { 1, 16, 999 }) {
+			Assert.assertEquals(hex(SHA3.buildMerkleTree(data, 0, data.length, leafSize).getRoot()),
+					hex(SHA3.merkleRoot(Channels.newChannel(new ByteArrayInputStream(data)), leafSize)));
+		}
+		Path file = Files.createTempFile("merkle", ".bin");
+		try {
+			Files.write(file, data);
+			Assert.assertEquals(hex(SHA3.buildMerkleTree(data, 0, data.length, 4096).getRoot()),
+					hex(SHA3.merkleRoot(file, 4096)));
+		} finally {
+			Files.delete(file);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			Assert.assertEquals(hex(referenceMerkleRoot(data, 0, 100, 1000)),
+					hex(new MerkleTree(data, 0, data.length, 1000, pool).getRoot()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void provider() throws Exception {
+		Provider provider = SHA3.getProvider();
+		Random random = new Random(48);
+		for (int bits : new int[] { 224, 256, 384, 512 }) {
+			MessageDigest jdk = MessageDigest.getInstance("SHA3-" + bits);
+			MessageDigest ours = MessageDigest.getInstance("SHA3-" + bits, provider);
+			Assert.assertEquals(provider, ours.getProvider());
+			Assert.assertEquals(jdk.getDigestLength(), ours.getDigestLength());
+			for (int len : new int[] { 0, 1, 71, 72, 73, 135, 136, 137, 1000, 70000 }) {
+				byte[] in = new byte[len];
+				random.nextBytes(in);
+				Assert.assertTrue(Arrays.equals(jdk.digest(in), ours.digest(in)));
+
+				// direct buffer, then a clone taken halfway
+				ByteBuffer direct = ByteBuffer.allocateDirect(len);
+				direct.put(in).flip();
+				direct.limit(len / 2);
+				ours.update(direct);
+				MessageDigest half = (MessageDigest) ours.clone();
+				direct.limit(len);
+				ours.update(direct);
+				Assert.assertTrue(Arrays.equals(jdk.digest(in), ours.digest()));
+				half.update(in, len / 2, len - len / 2);
+				byte[] out = new byte[ours.getDigestLength() + 3];
+				Assert.assertEquals(ours.getDigestLength(), half.digest(out, 3, ours.getDigestLength()));
+				Assert.assertTrue(Arrays.equals(jdk.digest(in), Arrays.copyOfRange(out, 3, out.length)));
+			}
+		}
+
+		Assert.assertEquals(provider, MessageDigest.getInstance("2.16.840.1.101.3.4.2.8", provider).getProvider());
+		Assert.assertTrue(Arrays.equals(
+				MessageDigest.getInstance("SHA3-512").digest(pattern(100)),
+				MessageDigest.getInstance("OID.2.16.840.1.101.3.4.2.10", provider).digest(pattern(100))));
+		Assert.assertEquals(hex(digest(new KeccakDigest(288), pattern(500))),
+				hex(MessageDigest.getInstance("KECCAK-288", provider).digest(pattern(500))));
+		try {
+			MessageDigest.getInstance("SHA3-256", provider).digest(new byte[32], 0, 16);
+			Assert.fail();
+		} catch (DigestException e) {
+		}
+	}
+
+	@Test
+	public void duplex() {
+		SHA3 sha3 = new SHA3();
+		int[] bits = { 128, 256 };
+		String[][] expected = {
+				{ "234530710a3207d07f4aab7c5095140d59c307932aa7cbb5041a6f836d8a612f",
+						"cc23ea2202ff3e2815dfb15c21ef5d2b7443f8ad7c9c5489293363613669c3898763222a1c31d0e4",
+						"8c3cf44dc3f221d5aef297157a2bd441930b068e697e8180535f500aa0a303fcc3541e9dc9907e4c3f0ae71705ac869b",
+						"d2f88939e69a094abbcaa4531f1a926bc97e0061654697b057333042db30ab5c" },
+				{ "c8668285ccd164ede06c76dce25d7b9e43137db88604fe1118522405e89b597b",
+						"dd9a3d6306d5d413356e856df6c9d4b20422a41d7239f96ad3606a04d90e3d502c62e882891adc11",
+						"832053c7a57e93c7a6869c59e45036c6c50f4da789ab020bcbc3f1fe771ad8fc0dc1060c4d96e345c8725071c8795d3a",
+						"582c02170aaf08270fda84ba07ecbd700cdb424adbb30f7200e452e873541f1b" } };
+		for (int i = 0; i < bits.length; i++) {
+			KeccakDuplex duplex = sha3.getDuplex(bits[i]);
+			duplex.absorb(pattern(200));
+			byte[] out = new byte[300];
+			duplex.squeeze(out, 0, 300);
+			Assert.assertEquals(expected[i][0], hex(Arrays.copyOfRange(out, 268, 300)));
+			// the first squeeze is plain Keccak
+			Assert.assertEquals(hex(digest(new KeccakDigest(bits[i]), pattern(200))),
+					hex(Arrays.copyOf(out, bits[i] / 8)));
+
+			duplex.absorb(pattern(5));
+			out = new byte[40];
+			duplex.nextBytes(out);
+			Assert.assertEquals(expected[i][1], hex(out));
+			Assert.assertEquals(expected[i][2], hex(duplex.derive("session".getBytes(StandardCharsets.UTF_8), 48)));
+			duplex.ratchet();
+			out = new byte[32];
+			duplex.nextBytes(out);
+			Assert.assertEquals(expected[i][3], hex(out));
+		}
+
+		KeccakDuplex reduced = sha3.getDuplex(128, 12);
+		reduced.absorb(pattern(17));
+		byte[] out = new byte[200];
+		reduced.nextBytes(out);
+		Assert.assertEquals("6301a9a36179ef5e8daa5194afea718daee23895e8fa76daf31c326a7a75220d",
+				hex(Arrays.copyOfRange(out, 168, 200)));
+
+		// split absorbs and squeezes stream; nextLong reads the same bytes
+		Random random = new Random(50);
+		byte[] seed = pattern(1000);
+		KeccakDuplex whole = sha3.getDuplex(256);
+		whole.absorb(seed);
+		byte[] expectedOut = new byte[3000];
+		whole.nextBytes(expectedOut);
+		for (int trial = 0; trial < 20; trial++) {
+			KeccakDuplex split = sha3.getDuplex(256);
+			for (int off = 0; off < seed.length;) {
+				int n = Math.min(random.nextInt(200), seed.length - off);
+				split.absorb(seed, off, n);
+				off += n;
+			}
+			byte[] actual = new byte[expectedOut.length];
+			for (int off = 0; off < actual.length;) {
+				if (actual.length - off >= 8 && random.nextBoolean()) {
+					long v = split.nextLong();
+					for (int j = 0; j < 8; j++) actual[off++] = (byte) (v >>> (8 * j));
+				} else {
+					int n = Math.min(random.nextInt(300), actual.length - off);
+					split.squeeze(actual, off, n);
+					off += n;
+				}
+			}
+			Assert.assertTrue(Arrays.equals(expectedOut, actual));
+		}
+
+		// derive does not move the duplex on and separates contexts and lengths
+		KeccakDuplex a = sha3.getDuplex(256);
+		KeccakDuplex b = sha3.getDuplex(256);
+		a.absorb(seed);
+		b.absorb(seed);
+		byte[] k1 = a.derive(new byte[] { 1 }, 32);
+		Assert.assertEquals(hex(k1), hex(a.derive(new byte[] { 1 }, 32)));
+		Assert.assertFalse(hex(k1).equals(hex(a.derive(new byte[] { 2 }, 32))));
+		Assert.assertFalse(hex(a.derive(new byte[] { 1 }, 64)).startsWith(hex(k1)));
+		Assert.assertEquals(a.nextLong(), b.nextLong());
+		a.ratchet();
+		Assert.assertFalse(a.nextLong() == b.nextLong());
+		a.clear();
+		b.clear();
+		Assert.assertEquals(a.nextLong(), b.nextLong());
+
+		// SecureRandom: reproducible with a seed, self-seeded without
+		SecureRandom r1 = sha3.getSecureRandom(256, seed);
+		SecureRandom r2 = sha3.getSecureRandom(256, seed);
+		Assert.assertEquals(SHA3.getProvider(), r1.getProvider());
+		byte[] b1 = new byte[100];
+		byte[] b2 = new byte[100];
+		r1.nextBytes(b1);
+		r2.nextBytes(b2);
+		Assert.assertTrue(Arrays.equals(b1, b2));
+		Assert.assertEquals(r1.nextLong(), r2.nextLong());
+		KeccakDuplex reference = sha3.getDuplex(256);
+		reference.absorb(seed);
+		reference.nextBytes(b2);
+		Assert.assertTrue(Arrays.equals(b1, b2));
+		sha3.getSecureRandom(128).nextBytes(b1);
+		sha3.getSecureRandom(128).nextBytes(b2);
+		Assert.assertFalse(Arrays.equals(b1, b2));
+
+		// setSeed before the first output does not replace the platform seed
+		r1 = sha3.getSecureRandom(256);
+		r2 = sha3.getSecureRandom(256);
+		r1.setSeed(42L);
+		r2.setSeed(42L);
+		r1.nextBytes(b1);
+		r2.nextBytes(b2);
+		Assert.assertFalse(Arrays.equals(b1, b2));
+		r1 = sha3.getSecureRandom(256);
+		r2 = sha3.getSecureRandom(256);
+		r1.setSeed(seed);
+		r2.setSeed(seed);
+		r1.nextBytes(b1);
+		r2.nextBytes(b2);
+		Assert.assertFalse(Arrays.equals(b1, b2));
+
+		// a setSeed after a constructor seed is still deterministic
+		r1 = sha3.getSecureRandom(256, seed);
+		r2 = sha3.getSecureRandom(256, seed);
+		r1.setSeed(42L);
+		r2.setSeed(42L);
+		r1.nextBytes(b1);
+		r2.nextBytes(b2);
+		Assert.assertTrue(Arrays.equals(b1, b2));
+	}
+
+	/*
+	 * RFC 6962 MTH with SHA3-256: split at the largest power of two below n.
+	 */
+	static byte[] referenceMerkleRoot(byte[] data, int first, int n, int leafSize) {
+		Digest digest = new SHA3Digest(256);
+		byte[] out = new byte[32];
+		if (n == 0) {
+			digest.doFinal(out, 0);
+		} else if (n == 1) {
+			int off = first * leafSize;
+			digest.update((byte) 0);
+			digest.update(data, off, Math.min(leafSize, data.length - off));
+			digest.doFinal(out, 0);
+		} else {
+			int k = Integer.highestOneBit(n - 1);
+			digest.update((byte) 1);
+			digest.update(referenceMerkleRoot(data, first, k, leafSize), 0, 32);
+			digest.update(referenceMerkleRoot(data, first + k, n - k, leafSize), 0, 32);
+			digest.doFinal(out, 0);
+		}
+		return out;
+	}
+
+	static final long[] RC = {
+		0x0000000000000001L, 0x0000000000008082L, 0x800000000000808AL, 0x8000000080008000L,
+		0x000000000000808BL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
+		0x000000000000008AL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000AL,
+		0x000000008000808BL, 0x800000000000008BL, 0x8000000000008089L, 0x8000000000008003L,
+		0x8000000000008002L, 0x8000000000000080L, 0x000000000000800AL, 0x800000008000000AL,
+		0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L };
+
+	static final int[] RHO = {
+		0, 1, 62, 28, 27, 36, 44, 6, 55, 20, 3, 10, 43, 25, 39, 41, 45, 15, 21, 8, 18, 2, 61, 56, 14 };
+
+	/*
+	 * The original loop form of Keccak-p[1600, rounds] (theta, rho, pi, chi,
+	 * iota as separate steps with % 5 indexing), kept as the reference.
+	 */
+	static void referencePermutation(long[] A, int rounds) {
+		long[] C = new long[5];
+		long[] tempA = new long[25];
+		for (int round = 24 - rounds; round < 24; round++) {
+			for (int x = 0; x < 5; x++) {
+				C[x] = 0;
+				for (int y = 0; y < 5; y++) C[x] ^= A[x + 5 * y];
+			}
+			for (int x = 0; x < 5; x++) {
+				long dX = ((C[(x + 1) % 5] << 1) ^ (C[(x + 1) % 5] >>> 63)) ^ C[(x + 4) % 5];
+				for (int y = 0; y < 5; y++) A[x + 5 * y] ^= dX;
+			}
+			for (int i = 0; i < 25; i++) {
+				A[i] = RHO[i] != 0 ? (A[i] << RHO[i]) ^ (A[i] >>> (64 - RHO[i])) : A[i];
+			}
+			System.arraycopy(A, 0, tempA, 0, 25);
+			for (int x = 0; x < 5; x++) {
+				for (int y = 0; y < 5; y++) A[y + 5 * ((2 * x + 3 * y) % 5)] = tempA[x + 5 * y];
+			}
+			for (int y = 0; y < 5; y++) {
+				for (int x = 0; x < 5; x++) {
+					C[x] = A[x + 5 * y] ^ ((~A[((x + 1) % 5) + 5 * y]) & A[((x + 2) % 5) + 5 * y]);
+				}
+				for (int x = 0; x < 5; x++) A[x + 5 * y] = C[x];
+			}
+			A[0] ^= RC[round];
+		}
+	}
+
+	static byte[] pattern(int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) b[i] = (byte) (i % 251);
+		return b;
+	}
+
+	static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (byte v : b) sb.append(String.format("%02x", v & 0xff));
+		return sb.toString();
+	}
+
+	static byte[] unhex(String s) {
+		byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return b;
+	}
+
 }
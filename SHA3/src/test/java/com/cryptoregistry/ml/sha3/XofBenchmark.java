@@ -0,0 +1,68 @@
+package com.cryptoregistry.ml.sha3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SHAKE256 output streaming through XofReader, run with mvn test-compile
+ * exec:exec -Djmh.args=XofBenchmark. Compare with the permutation alone
+ * (136 bytes per permutation) to see how close the output path gets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class XofBenchmark {
+
+	@Param({ "1048576" })
+	int size;
+
+	XofReader reader;
+	byte[] out;
+	ByteBuffer direct;
+	long[] lanes = new long[25];
+
+	@Setup
+	public void setup() {
+		SHAKEDigest shake = new SHAKEDigest(256);
+		shake.update(new byte[32], 0, 32);
+		reader = new XofReader(shake);
+		out = new byte[size];
+		direct = ByteBuffer.allocateDirect(size);
+	}
+
+	@Benchmark
+	public byte[] readArray() {
+		reader.read(out, 0, out.length);
+		return out;
+	}
+
+	@Benchmark
+	public ByteBuffer readDirect() {
+		direct.clear();
+		reader.read(direct);
+		return direct;
+	}
+
+	@Benchmark
+	public long[] permutationOnly() {
+		for (int i = 0; i < size / 136; i++) {
+			KeccakDigest.keccakPermutationOnWords(lanes, 24);
+		}
+		return lanes;
+	}
+}